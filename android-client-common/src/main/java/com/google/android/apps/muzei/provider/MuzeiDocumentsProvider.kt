@@ -17,27 +17,20 @@
 package com.google.android.apps.muzei.provider
 
 import android.annotation.SuppressLint
-import android.content.ContentUris
 import android.content.res.AssetFileDescriptor
 import android.database.Cursor
 import android.database.MatrixCursor
-import android.graphics.Bitmap
 import android.graphics.Point
-import android.net.Uri
 import android.os.CancellationSignal
 import android.os.ParcelFileDescriptor
 import android.provider.DocumentsContract
 import android.provider.DocumentsProvider
-import android.util.Log
-import com.google.android.apps.muzei.render.ImageLoader
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import kotlinx.coroutines.experimental.runBlocking
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig
 import net.nurik.roman.muzei.androidclientcommon.R
-import java.io.File
 import java.io.FileNotFoundException
-import java.io.FileOutputStream
 import java.io.IOException
 
 /**
@@ -46,7 +39,6 @@ import java.io.IOException
 class MuzeiDocumentsProvider : DocumentsProvider() {
 
     companion object {
-        private const val TAG = "MuzeiDocumentsProvider"
         /**
          * Default root projection
          */
@@ -70,6 +62,8 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
                 DocumentsContract.Document.COLUMN_LAST_MODIFIED)
 
         private const val ROOT_DOCUMENT_ID = "root"
+        private const val THUMBNAIL_DIRECTORY = "artwork_thumbnails"
+        private const val THUMBNAIL_MAX_SIZE_BYTES = 8L * 1024 * 1024
     }
 
     @SuppressLint("InlinedApi")
@@ -121,10 +115,15 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
         val result = MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
         val context = context ?: return result
         if (ROOT_DOCUMENT_ID == parentDocumentId) {
-            includeAllArtwork(result, runBlocking {
+            val artworkList = runBlocking {
                 MuzeiDatabase.getInstance(context).artworkDao()
                         .getArtwork()
-            })
+            }
+            includeAllArtwork(result, artworkList)
+            // Drop the thumbnails of artwork that has been deleted since
+            ensureBackground {
+                thumbnailCache.retainAll(artworkList.map { it.id.toString() })
+            }
             result.setNotificationUri(context.contentResolver,
                     DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
                             ROOT_DOCUMENT_ID))
@@ -212,70 +211,43 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
             sizeHint: Point,
             signal: CancellationSignal?
     ): AssetFileDescriptor? {
+        val context = context ?: return null
         val artworkId = documentId.toLong()
-        return runBlocking {
-            openArtworkThumbnail(Artwork.getContentUri(artworkId), sizeHint)
-        }
-    }
-
-    @Throws(FileNotFoundException::class)
-    private suspend fun openArtworkThumbnail(
-            artworkUri: Uri,
-            sizeHint: Point
-    ): AssetFileDescriptor? {
-        val contentResolver = context?.contentResolver ?: return null
-        val artworkId = ContentUris.parseId(artworkUri)
-        val tempFile = getCacheFileForArtworkUri(artworkId)
-        if (tempFile.exists() && tempFile.length() != 0L) {
-            // We already have a cached thumbnail
-            return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH)
+        val artwork = ensureBackground {
+            MuzeiDatabase.getInstance(context).artworkDao()
+                    .getArtworkByIdBlocking(artworkId)
         }
-        val bitmap = ImageLoader.decode(
-                contentResolver, artworkUri,
-                sizeHint.x / 2, sizeHint.y / 2
-        ) ?: run {
+        val thumbnail = try {
+            if (artwork == null) {
+                throw FileNotFoundException("Unable to get artwork for id $artworkId")
+            }
+            ensureBackground {
+                thumbnailCache.get(artwork.contentUri, sizeHint.x, sizeHint.y, signal,
+                        artworkId.toString())
+            }
+        } catch (e: FileNotFoundException) {
             // The artwork isn't there anymore. Delete it to
             // revoke any document permissions attached to it
-            DocumentsContract.deleteDocument(contentResolver,
+            DocumentsContract.deleteDocument(context.contentResolver,
                     DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
-                            artworkId.toString()))
-            throw FileNotFoundException("Unable to open artwork for $artworkUri")
-        }
-
-        // Write out the thumbnail to a temporary file
-        try {
-            FileOutputStream(tempFile).use { out ->
-                bitmap.compress(Bitmap.CompressFormat.PNG, 90, out)
-            }
+                            documentId))
+            throw e
         } catch (e: IOException) {
-            Log.e(TAG, "Error writing thumbnail", e)
-            return null
+            // The artwork is fine, but its thumbnail couldn't be cached
+            // (e.g., the disk is full), so only fail this request
+            throw FileNotFoundException(e.message)
         }
-
-        return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
+        return AssetFileDescriptor(ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY), 0,
                 AssetFileDescriptor.UNKNOWN_LENGTH)
     }
 
-    @Throws(FileNotFoundException::class)
-    private suspend fun getCacheFileForArtworkUri(artworkId: Long): File {
-        val context = context ?: throw FileNotFoundException("Unable to create cache directory")
-        val directory = File(context.cacheDir, "artwork_thumbnails")
-        if (!directory.exists() && !directory.mkdirs()) {
-            throw FileNotFoundException("Unable to create cache directory")
-        }
-        val artwork = MuzeiDatabase.getInstance(context).artworkDao()
-                .getArtworkById(artworkId)
-                ?: throw FileNotFoundException("Unable to get artwork for id $artworkId")
-        return File(directory, artwork.id.toString())
-    }
-
     @Throws(FileNotFoundException::class)
     override fun deleteDocument(documentId: String) {
         val context = context ?: return
         val artworkId = documentId.toLong()
         ensureBackground {
             MuzeiDatabase.getInstance(context).artworkDao().deleteById(artworkId)
+            thumbnailCache.remove(artworkId.toString())
         }
         context.contentResolver.notifyChange(
                 DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
@@ -286,4 +258,8 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
     override fun onCreate(): Boolean {
         return true
     }
+
+    private val thumbnailCache by lazy {
+        ThumbnailCache(context!!, THUMBNAIL_DIRECTORY, THUMBNAIL_MAX_SIZE_BYTES)
+    }
 }
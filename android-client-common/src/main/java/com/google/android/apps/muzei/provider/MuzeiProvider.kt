@@ -27,6 +27,7 @@ import android.database.MatrixCursor
 import android.net.Uri
 import android.os.Binder
 import android.os.ParcelFileDescriptor
+import android.os.Process
 import android.provider.BaseColumns
 import android.support.v4.os.UserManagerCompat
 import android.util.Log
@@ -35,6 +36,7 @@ import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.getDescription
 import kotlinx.coroutines.experimental.runBlocking
 import java.io.FileNotFoundException
+import java.io.IOException
 
 /**
  * Provides access to a the most recent artwork
@@ -59,6 +61,14 @@ class MuzeiProvider : ContentProvider() {
          * The incoming URI matches the SOURCE ID URI pattern
          */
         private const val SOURCE_ID = 4
+        /**
+         * The incoming URI matches the THUMBNAILS URI pattern
+         */
+        private const val THUMBNAILS = 5
+        /**
+         * The incoming URI matches the THUMBNAIL ID URI pattern
+         */
+        private const val THUMBNAIL_ID = 6
         /**
          * A UriMatcher instance
          */
@@ -71,6 +81,10 @@ class MuzeiProvider : ContentProvider() {
                     MuzeiProvider.SOURCES)
             addURI(MuzeiContract.AUTHORITY, "${MuzeiContract.Sources.TABLE_NAME}/#",
                     MuzeiProvider.SOURCE_ID)
+            addURI(MuzeiContract.AUTHORITY, MuzeiContract.Thumbnails.TABLE_NAME,
+                    MuzeiProvider.THUMBNAILS)
+            addURI(MuzeiContract.AUTHORITY, "${MuzeiContract.Thumbnails.TABLE_NAME}/#",
+                    MuzeiProvider.THUMBNAIL_ID)
         }
     }
 
@@ -121,6 +135,9 @@ class MuzeiProvider : ContentProvider() {
             SOURCE_ID ->
                 // If the pattern is for source id, returns the sources content item type.
                 MuzeiContract.Sources.CONTENT_ITEM_TYPE
+            THUMBNAILS, THUMBNAIL_ID ->
+                // If the pattern is for a thumbnail, returns the thumbnail image type.
+                MuzeiContract.Thumbnails.CONTENT_TYPE
             else -> throw IllegalArgumentException("Unknown URI $uri")
         }
     }
@@ -138,6 +155,10 @@ class MuzeiProvider : ContentProvider() {
         return true
     }
 
+    private val thumbnailCache by lazy {
+        ThumbnailCache(context!!)
+    }
+
     override fun query(
             uri: Uri,
             projection: Array<String>?,
@@ -237,6 +258,9 @@ class MuzeiProvider : ContentProvider() {
         return if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK ||
                 MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.ARTWORK_ID) {
             openFileArtwork(uri, mode)
+        } else if (MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.THUMBNAILS ||
+                MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.THUMBNAIL_ID) {
+            openFileThumbnail(uri, mode)
         } else {
             throw IllegalArgumentException("Unknown URI $uri")
         }
@@ -272,6 +296,53 @@ class MuzeiProvider : ContentProvider() {
         }
     }
 
+    @Throws(FileNotFoundException::class)
+    private fun openFileThumbnail(uri: Uri, mode: String): ParcelFileDescriptor? {
+        val context = context ?: return null
+        if (mode != "r") {
+            throw IllegalArgumentException("Thumbnails can only be opened for reading")
+        }
+        if (!UserManagerCompat.isUserUnlocked(context)) {
+            throw FileNotFoundException("Thumbnails are not available until the user is unlocked")
+        }
+        val width = uri.getQueryParameter(MuzeiContract.Thumbnails.QUERY_PARAMETER_WIDTH)
+                ?.toIntOrNull() ?: 0
+        val height = uri.getQueryParameter(MuzeiContract.Thumbnails.QUERY_PARAMETER_HEIGHT)
+                ?.toIntOrNull() ?: 0
+        if (width <= 0 || height <= 0) {
+            throw IllegalArgumentException("Invalid thumbnail size for $uri")
+        }
+        val requestedImageUri = uri.getQueryParameter(
+                MuzeiContract.Thumbnails.QUERY_PARAMETER_IMAGE_URI)
+        val imageUri = if (requestedImageUri != null) {
+            // Other apps must not be able to read arbitrary URIs with our permissions
+            if (Binder.getCallingUid() != Process.myUid()) {
+                throw SecurityException("Only Muzei can request thumbnails of image URIs")
+            }
+            Uri.parse(requestedImageUri)
+        } else {
+            val artworkDao = MuzeiDatabase.getInstance(context).artworkDao()
+            ensureBackground {
+                when {
+                    MuzeiProvider.uriMatcher.match(uri) == MuzeiProvider.THUMBNAILS -> artworkDao.currentArtworkBlocking
+                    else -> artworkDao.getArtworkByIdBlocking(ContentUris.parseId(uri))
+                }
+            }?.imageUri ?: throw FileNotFoundException("Could not get artwork for $uri")
+        }
+        val token = Binder.clearCallingIdentity()
+        try {
+            val file = ensureBackground {
+                thumbnailCache.get(imageUri, width, height)
+            }
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
+        } catch (e: IOException) {
+            // Only a FileNotFoundException can be sent back to the caller
+            throw e as? FileNotFoundException ?: FileNotFoundException(e.message)
+        } finally {
+            Binder.restoreCallingIdentity(token)
+        }
+    }
+
     override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
         throw UnsupportedOperationException("Updates are not supported")
     }
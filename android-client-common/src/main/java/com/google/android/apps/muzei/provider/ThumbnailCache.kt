@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.net.Uri
+import android.os.CancellationSignal
+import android.util.Log
+import com.google.android.apps.muzei.render.ContentUriImageLoader
+import com.google.android.apps.muzei.render.DecodePlanner
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
+
+/**
+ * A disk cache of artwork thumbnails, so that lists of artwork only read and decode each
+ * full size image once rather than every time a thumbnail of it is shown.
+ *
+ * Each thumbnail is a single WebP file named after the key of the image it was created
+ * from and its size, written to a temporary file and then renamed into place so that
+ * readers never see partial entries. The cache is trimmed to [maxSizeBytes] by evicting
+ * the least recently used entries, and [retainAll] and [remove] drop the thumbnails of
+ * images that no longer exist.
+ */
+internal class ThumbnailCache(
+        context: Context,
+        directoryName: String = DEFAULT_DIRECTORY,
+        private val maxSizeBytes: Long = DEFAULT_MAX_SIZE_BYTES
+) {
+
+    companion object {
+        private const val TAG = "ThumbnailCache"
+        private const val DEFAULT_DIRECTORY = "thumbnails"
+        private const val DEFAULT_MAX_SIZE_BYTES = 16L * 1024 * 1024
+        private const val TEMP_FILE_PREFIX = "thumbnail"
+        private const val QUALITY = 80
+        /**
+         * Requested sizes are rounded up to a multiple of this so that views of slightly
+         * different sizes share the same thumbnail
+         */
+        private const val SIZE_STEP = 64
+        /**
+         * The largest width or height of a thumbnail
+         */
+        private const val MAX_THUMBNAIL_SIZE = 1024
+    }
+
+    private val contentResolver = context.applicationContext.contentResolver
+    private val directory = File(context.cacheDir, directoryName)
+
+    private fun Int.toThumbnailSize() =
+            Math.min(MAX_THUMBNAIL_SIZE, (this + SIZE_STEP - 1) / SIZE_STEP * SIZE_STEP)
+
+    private fun hash(key: String): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+                .digest(key.toByteArray(Charsets.UTF_8))
+        return digest.joinToString("") {
+            String.format("%02x", it)
+        }
+    }
+
+    private val File.keyHash
+        get() = name.substringBefore('_')
+
+    /**
+     * Returns a file containing a thumbnail of the image at [imageUri] that covers at least
+     * [width] by [height] pixels, creating it if it isn't cached yet. The thumbnail is
+     * stored under [key], which defaults to the [imageUri] itself. This does disk I/O and
+     * decodes images, so it should only be called on a background thread.
+     *
+     * Cancelling the [cancellationSignal] aborts creating the thumbnail by throwing an
+     * [android.os.OperationCanceledException].
+     *
+     * @throws FileNotFoundException if the image can't be read or decoded
+     * @throws IOException if the thumbnail can't be written, e.g. when the disk is full
+     */
+    @Throws(IOException::class)
+    fun get(
+            imageUri: Uri,
+            width: Int,
+            height: Int,
+            cancellationSignal: CancellationSignal? = null,
+            key: String = imageUri.toString()
+    ): File {
+        val thumbnailWidth = width.toThumbnailSize()
+        val thumbnailHeight = height.toThumbnailSize()
+        val file = File(directory, "${hash(key)}_${thumbnailWidth}x$thumbnailHeight")
+        if (file.length() > 0) {
+            file.setLastModified(System.currentTimeMillis())
+            return file
+        }
+        val imageLoader = ContentUriImageLoader(contentResolver, imageUri)
+        val (imageWidth, imageHeight) = imageLoader.getSize()
+        val plan = DecodePlanner.planThumbnail(thumbnailWidth, thumbnailHeight,
+                imageWidth, imageHeight)
+        cancellationSignal?.throwIfCanceled()
+        val image = imageLoader.decodeOriented(plan, cancellationSignal)?.toUprightBitmap()
+        cancellationSignal?.throwIfCanceled()
+        if (image == null) {
+            throw FileNotFoundException("Unable to decode $imageUri")
+        }
+        val thumbnail = Bitmap.createScaledBitmap(image, plan.width, plan.height, true)
+        var tempFile: File? = null
+        try {
+            directory.mkdirs()
+            tempFile = File.createTempFile(TEMP_FILE_PREFIX, null, directory)
+            FileOutputStream(tempFile).use { out ->
+                thumbnail.compress(Bitmap.CompressFormat.WEBP, QUALITY, out)
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Unable to rename $tempFile")
+            }
+            tempFile = null
+            trim()
+        } catch (e: IOException) {
+            Log.w(TAG, "Error caching thumbnail for $imageUri", e)
+            // Not a FileNotFoundException, as the image itself is still there
+            throw IOException("Unable to write thumbnail for $imageUri", e)
+        } finally {
+            tempFile?.delete()
+            if (thumbnail != image) {
+                thumbnail.recycle()
+            }
+            image.recycle()
+        }
+        return file
+    }
+
+    /**
+     * Deletes all thumbnails stored under [key].
+     */
+    fun remove(key: String) {
+        val keyHash = hash(key)
+        directory.listFiles()?.forEach { file ->
+            if (file.keyHash == keyHash) {
+                file.delete()
+            }
+        }
+    }
+
+    /**
+     * Deletes the thumbnails of every key not in [keys], i.e., of images that no longer
+     * exist. Thumbnails that are still being written are left alone.
+     */
+    fun retainAll(keys: Collection<String>) {
+        val keyHashes = keys.mapTo(HashSet()) { hash(it) }
+        directory.listFiles()?.forEach { file ->
+            if (!file.name.startsWith(TEMP_FILE_PREFIX) && file.keyHash !in keyHashes) {
+                file.delete()
+            }
+        }
+    }
+
+    private fun trim() {
+        val files = directory.listFiles()?.sortedByDescending { it.lastModified() } ?: return
+        var totalSize = 0L
+        files.forEachIndexed { index, file ->
+            totalSize += file.length()
+            // Always keep the most recent entry
+            if (totalSize > maxSizeBytes && index > 0) {
+                file.delete()
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.net.Uri
+import android.util.LruCache
+import com.google.android.apps.muzei.room.Artwork
+import kotlinx.coroutines.experimental.CommonPool
+import kotlinx.coroutines.experimental.Deferred
+import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.withContext
+import kotlin.coroutines.experimental.CoroutineContext
+
+/**
+ * A process-wide cache of decoded artwork, shared by everything that shows the current
+ * artwork (wallpaper colors, widgets, notifications, Android Wear, document thumbnails).
+ *
+ * Bitmaps are keyed by artwork id and the `inSampleSize` they are decoded with, which
+ * buckets requested sizes: every request that maps to the same sample size gets the same
+ * bitmap. Concurrent requests for the same bitmap share a single decode, and the cache is
+ * trimmed to [MAX_SIZE_BYTES] by evicting the least recently used bitmaps.
+ *
+ * Returned bitmaps are shared and must not be recycled or modified.
+ */
+object ArtworkBitmapCache {
+    private const val MAX_SIZE_BYTES = 8 * 1024 * 1024
+    // Fraction of the maximum heap size the cache may use on devices with a small heap
+    private const val MAX_HEAP_DIVISOR = 16L
+
+    private data class Key(val artworkId: Long, val sampleSize: Int, val config: Bitmap.Config)
+
+    private val bitmaps = object : LruCache<Key, Bitmap>(Math.min(MAX_SIZE_BYTES.toLong(),
+            Runtime.getRuntime().maxMemory() / MAX_HEAP_DIVISOR).toInt()) {
+        override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+    }
+    // The upright width and height of recently requested artwork
+    private val sizes = LruCache<Long, Pair<Int, Int>>(16)
+    // Guarded by itself
+    private val inFlight = HashMap<Key, Deferred<Bitmap?>>()
+
+    /**
+     * Returns the [artwork] decoded at least [targetWidth] by [targetHeight] pixels (or at
+     * full size if [targetWidth] is 0) in the given [config], or null if it can't be decoded.
+     * If it needs to be decoded, that is done in [decodeContext].
+     */
+    suspend fun get(
+            context: Context,
+            artwork: Artwork,
+            targetWidth: Int = 0,
+            targetHeight: Int = targetWidth,
+            config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+            decodeContext: CoroutineContext = CommonPool
+    ) = get(context, artwork.id, artwork.contentUri, targetWidth, targetHeight, config,
+            decodeContext)
+
+    /**
+     * Returns the artwork with the given [artworkId], read from [contentUri], decoded at
+     * least [targetWidth] by [targetHeight] pixels (or at full size if [targetWidth] is 0)
+     * in the given [config], or null if it can't be decoded. If it needs to be decoded, that
+     * is done in [decodeContext].
+     */
+    suspend fun get(
+            context: Context,
+            artworkId: Long,
+            contentUri: Uri,
+            targetWidth: Int = 0,
+            targetHeight: Int = targetWidth,
+            config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+            decodeContext: CoroutineContext = CommonPool
+    ): Bitmap? {
+        val imageLoader = ContentUriImageLoader(
+                context.applicationContext.contentResolver, contentUri)
+        val (width, height) = getSize(imageLoader, artworkId, decodeContext)
+        if (width == 0 || height == 0) {
+            return null
+        }
+        val sampleSize = if (targetWidth != 0) {
+            Math.max(width.sampleSize(targetWidth), height.sampleSize(targetHeight))
+        } else {
+            1
+        }
+        val key = Key(artworkId, sampleSize, config)
+        val deferred = synchronized(inFlight) {
+            bitmaps.get(key)?.let { bitmap ->
+                return bitmap
+            }
+            inFlight.getOrPut(key) {
+                async(decodeContext) {
+                    var bitmap: Bitmap? = null
+                    try {
+                        bitmap = imageLoader.decodeOriented(
+                                DecodePlan(width / sampleSize, height / sampleSize,
+                                        sampleSize, config))?.toUprightBitmap()
+                        bitmap
+                    } finally {
+                        // Even a failed decode has to leave inFlight, so that the
+                        // next request tries again
+                        synchronized(inFlight) {
+                            bitmap?.let { bitmaps.put(key, it) }
+                            inFlight.remove(key)
+                        }
+                    }
+                }
+            }
+        }
+        return deferred.await()
+    }
+
+    /**
+     * Returns the upright width and height of the [artwork], or (0, 0) if its size can't be
+     * read. If it needs to be read, that is done in [decodeContext].
+     */
+    suspend fun getSize(
+            context: Context,
+            artwork: Artwork,
+            decodeContext: CoroutineContext = CommonPool
+    ) = getSize(ContentUriImageLoader(context.applicationContext.contentResolver,
+            artwork.contentUri), artwork.id, decodeContext)
+
+    private suspend fun getSize(
+            imageLoader: ImageLoader,
+            artworkId: Long,
+            decodeContext: CoroutineContext
+    ) = sizes.get(artworkId) ?: withContext(decodeContext) {
+        imageLoader.getSize()
+    }.also { size ->
+        if (size.first != 0 && size.second != 0) {
+            sizes.put(artworkId, size)
+        }
+    }
+
+    /**
+     * Drops all cached bitmaps, e.g. when the system is low on memory.
+     */
+    fun evictAll() {
+        bitmaps.evictAll()
+        sizes.evictAll()
+    }
+}
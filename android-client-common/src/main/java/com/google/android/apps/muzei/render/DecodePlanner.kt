@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.graphics.Bitmap
+import com.google.android.apps.muzei.util.divideRoundUp
+
+/**
+ * How an artwork should be decoded, as computed by [DecodePlanner].
+ *
+ * @property width the width of the resulting bitmap, once rotated upright
+ * @property height the height of the resulting bitmap, once rotated upright
+ * @property sampleSize the `inSampleSize` to decode the artwork with
+ * @property config the `inPreferredConfig` to decode the artwork with
+ * @property blurKeyframes the number of blurred keyframes to create from the decoded
+ * bitmap, if any
+ */
+data class DecodePlan(
+        val width: Int,
+        val height: Int,
+        val sampleSize: Int,
+        val config: Bitmap.Config,
+        val blurKeyframes: Int = 0
+)
+
+/**
+ * Computes how to decode artwork up front from the available memory, rather than
+ * decoding optimistically and retrying at a lower quality when that fails.
+ *
+ * All methods are pure functions of their arguments.
+ */
+object DecodePlanner {
+    // Fraction of the memory class the sharp wallpaper keyframe may use
+    private const val WALLPAPER_MEMORY_CLASS_DIVISOR = 4
+    // Devices with a memory class (in MB) below this only get a single blur keyframe
+    private const val MULTIPLE_KEYFRAMES_MIN_MEMORY_CLASS = 64
+    // The system rejects RemoteViews whose bitmaps use more than 6 bytes per screen pixel
+    private const val WIDGET_BITMAP_BYTES_PER_SCREEN_PIXEL = 6L
+
+    private fun Bitmap.Config.bytesPerPixel() = when (this) {
+        Bitmap.Config.ALPHA_8 -> 1
+        Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444 -> 2
+        else -> 4
+    }
+
+    /**
+     * Returns the number of blurred keyframes the wallpaper should create for each set
+     * of effects.
+     */
+    fun blurKeyframes(memoryClass: Int, isLowRamDevice: Boolean) =
+            if (isLowRamDevice || memoryClass < MULTIPLE_KEYFRAMES_MIN_MEMORY_CLASS) 1 else 2
+
+    /**
+     * Plans the decoding of the sharp wallpaper keyframe for an artwork of the given size
+     * (once rotated upright) shown on a surface [surfaceHeight] pixels tall.
+     *
+     * The artwork is decoded at roughly the surface height. If that doesn't fit in the
+     * memory budget derived from [memoryClass] (as returned by
+     * `ActivityManager.getMemoryClass()`), the resolution is reduced instead. The sharp
+     * keyframe is always [Bitmap.Config.ARGB_8888]; only the blurred keyframes, where
+     * the loss of precision isn't visible, use [RENDITION_CONFIG].
+     */
+    fun planWallpaper(
+            memoryClass: Int,
+            isLowRamDevice: Boolean,
+            surfaceHeight: Int,
+            artworkWidth: Int,
+            artworkHeight: Int
+    ): DecodePlan {
+        val blurKeyframes = blurKeyframes(memoryClass, isLowRamDevice)
+        val config = Bitmap.Config.ARGB_8888
+        if (artworkWidth <= 0 || artworkHeight <= 0 || surfaceHeight <= 0) {
+            return DecodePlan(0, 0, 1, config, blurKeyframes)
+        }
+        val budgetBytes = memoryClass.toLong() * 1024 * 1024 / WALLPAPER_MEMORY_CLASS_DIVISOR
+        val targetWidth = Math.max(1,
+                (artworkWidth.toLong() * surfaceHeight / artworkHeight).toInt())
+        var sampleSize = Math.max(
+                artworkWidth.sampleSize(targetWidth),
+                artworkHeight.sampleSize(surfaceHeight))
+        while (true) {
+            val width = artworkWidth.divideRoundUp(sampleSize)
+            val height = artworkHeight.divideRoundUp(sampleSize)
+            val pixels = width.toLong() * height
+            if (pixels * config.bytesPerPixel() <= budgetBytes || pixels <= 1) {
+                return DecodePlan(width, height, sampleSize, config, blurKeyframes)
+            }
+            sampleSize = sampleSize shl 1
+        }
+    }
+
+    /**
+     * Plans the bitmap shown by an app widget [widgetWidth] by [widgetHeight] pixels on
+     * a display of [displayWidth] by [displayHeight] pixels, so that it stays within the
+     * bitmap memory the system allows for a single RemoteViews update.
+     *
+     * The returned [DecodePlan.width] and [DecodePlan.height] are the size the decoded
+     * artwork should be scaled to.
+     */
+    fun planWidget(
+            displayWidth: Int,
+            displayHeight: Int,
+            widgetWidth: Int,
+            widgetHeight: Int,
+            artworkWidth: Int,
+            artworkHeight: Int
+    ): DecodePlan {
+        val config = RENDITION_CONFIG
+        if (artworkWidth <= 0 || artworkHeight <= 0 || widgetWidth <= 0 || widgetHeight <= 0) {
+            return DecodePlan(0, 0, 1, config)
+        }
+        val budgetBytes = WIDGET_BITMAP_BYTES_PER_SCREEN_PIXEL * displayWidth * displayHeight
+        // Fit the largest dimension of the artwork to the largest dimension of the widget
+        val largestDimension = Math.max(widgetWidth, widgetHeight)
+        var width: Int
+        var height: Int
+        when {
+            artworkWidth > artworkHeight -> {
+                width = largestDimension
+                height = (artworkHeight.toLong() * largestDimension / artworkWidth).toInt()
+            }
+            artworkHeight > artworkWidth -> {
+                height = largestDimension
+                width = (artworkWidth.toLong() * largestDimension / artworkHeight).toInt()
+            }
+            else -> {
+                width = largestDimension
+                height = largestDimension
+            }
+        }
+        while (width.toLong() * height * config.bytesPerPixel() > budgetBytes &&
+                width > 1 && height > 1) {
+            width /= 2
+            height /= 2
+        }
+        val sampleSize = Math.max(
+                artworkWidth.sampleSize(Math.max(1, widgetWidth / 2)),
+                artworkHeight.sampleSize(Math.max(1, widgetHeight / 2)))
+        return DecodePlan(Math.max(1, width), Math.max(1, height), sampleSize, config)
+    }
+
+    /**
+     * Plans a thumbnail covering [thumbnailWidth] by [thumbnailHeight] pixels of an artwork
+     * of the given size (once rotated upright). The artwork is never upscaled.
+     *
+     * The returned [DecodePlan.width] and [DecodePlan.height] are the size the decoded
+     * artwork should be scaled to, keeping its aspect ratio.
+     */
+    fun planThumbnail(
+            thumbnailWidth: Int,
+            thumbnailHeight: Int,
+            artworkWidth: Int,
+            artworkHeight: Int
+    ): DecodePlan {
+        val config = Bitmap.Config.ARGB_8888
+        if (artworkWidth <= 0 || artworkHeight <= 0 ||
+                thumbnailWidth <= 0 || thumbnailHeight <= 0) {
+            return DecodePlan(0, 0, 1, config)
+        }
+        val scale = Math.min(1f, Math.max(
+                thumbnailWidth.toFloat() / artworkWidth,
+                thumbnailHeight.toFloat() / artworkHeight))
+        val width = Math.max(1, Math.round(artworkWidth * scale))
+        val height = Math.max(1, Math.round(artworkHeight * scale))
+        // Both dimensions need to stay at least as large as the thumbnail
+        val sampleSize = Math.min(
+                artworkWidth.sampleSize(width),
+                artworkHeight.sampleSize(height))
+        return DecodePlan(width, height, sampleSize, config)
+    }
+}
@@ -23,11 +23,15 @@ import android.graphics.BitmapFactory
 import android.graphics.Matrix
 import android.net.Uri
 import android.os.Build
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import android.os.Trace
 import android.support.media.ExifInterface
 import android.util.Log
 import kotlinx.coroutines.experimental.CommonPool
 import kotlinx.coroutines.experimental.withContext
 import java.io.FileNotFoundException
+import java.io.FilterInputStream
 import java.io.IOException
 import java.io.InputStream
 
@@ -44,6 +48,47 @@ fun InputStream.isValidImage(): Boolean {
     }
 }
 
+/**
+ * A decoded [bitmap] that still needs to be rotated clockwise by [rotation] degrees
+ * to be displayed upright. GL consumers can apply the rotation when drawing, while
+ * others can use [toUprightBitmap].
+ */
+class OrientedBitmap(val bitmap: Bitmap, val rotation: Int) {
+
+    /**
+     * The width of the bitmap once rotated
+     */
+    val width: Int
+        get() = if (rotation == 90 || rotation == 270) bitmap.height else bitmap.width
+
+    /**
+     * The height of the bitmap once rotated
+     */
+    val height: Int
+        get() = if (rotation == 90 || rotation == 270) bitmap.width else bitmap.height
+
+    /**
+     * Returns the upright bitmap, only creating a rotated copy (and recycling the
+     * original [bitmap]) if a rotation is actually needed.
+     */
+    fun toUprightBitmap(): Bitmap {
+        if (rotation == 0) {
+            return bitmap
+        }
+        val rotateMatrix = Matrix().apply {
+            postRotate(rotation.toFloat())
+        }
+        return Bitmap.createBitmap(
+                bitmap, 0, 0,
+                bitmap.width, bitmap.height,
+                rotateMatrix, true).also { rotatedBitmap ->
+            if (rotatedBitmap != bitmap) {
+                bitmap.recycle()
+            }
+        }
+    }
+}
+
 /**
  * Base class for loading images with the correct rotation
  */
@@ -84,8 +129,20 @@ sealed class ImageLoader {
 
     fun decode(
             targetWidth: Int = 0,
-            targetHeight: Int = targetWidth
-    ) : Bitmap? {
+            targetHeight: Int = targetWidth,
+            config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    ) : Bitmap? = decodeOriented(targetWidth, targetHeight, config)?.toUprightBitmap()
+
+    /**
+     * Decodes the image without applying its EXIF rotation, which avoids allocating a
+     * second, rotated copy of the bitmap. The [targetWidth] and [targetHeight] are
+     * relative to the image as it should be displayed.
+     */
+    fun decodeOriented(
+            targetWidth: Int = 0,
+            targetHeight: Int = targetWidth,
+            config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    ) : OrientedBitmap? {
         return try {
             val (originalWidth, originalHeight) = openInputStream()?.use { input ->
                 val options = BitmapFactory.Options().apply {
@@ -100,31 +157,55 @@ sealed class ImageLoader {
             openInputStream()?.use { input ->
                 BitmapFactory.decodeStream(input, null,
                         BitmapFactory.Options().apply {
-                            inPreferredConfig = Bitmap.Config.ARGB_8888
+                            inPreferredConfig = config
                             if (targetWidth != 0) {
                                 inSampleSize = Math.max(
                                         width.sampleSize(targetWidth),
                                         height.sampleSize(targetHeight))
                             }
                         })
-            }?.run {
-                when (rotation) {
-                    0 -> this
-                    else -> {
-                        val rotateMatrix = Matrix().apply {
-                            postRotate(rotation.toFloat())
-                        }
-                        Bitmap.createBitmap(
-                                this, 0, 0,
-                                this.width, this.height,
-                                rotateMatrix, true).also { rotatedBitmap ->
-                            if (rotatedBitmap != this) {
-                                recycle()
-                            }
-                        }
-                    }
+            }?.let { bitmap ->
+                OrientedBitmap(bitmap, rotation)
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Error decoding ${toString()}", e)
+            null
+        }
+    }
+
+    /**
+     * Decodes the image with the sample size and config of the given [plan], without
+     * applying its EXIF rotation. Cancelling the [cancellationSignal] aborts the decode,
+     * in which case this returns null.
+     */
+    fun decodeOriented(
+            plan: DecodePlan,
+            cancellationSignal: CancellationSignal? = null
+    ) : OrientedBitmap? {
+        return try {
+            cancellationSignal?.throwIfCanceled()
+            val rotation = getRotation()
+            tracedOpenInputStream()?.let { input ->
+                if (cancellationSignal != null)
+                    CancellableInputStream(input, cancellationSignal)
+                else
+                    input
+            }?.use { input ->
+                BitmapFactory.decodeStream(input, null,
+                        BitmapFactory.Options().apply {
+                            inPreferredConfig = plan.config
+                            inSampleSize = plan.sampleSize
+                        })
+            }?.let { bitmap ->
+                if (cancellationSignal?.isCanceled == true) {
+                    // The decoder may return a partial image when its input fails
+                    bitmap.recycle()
+                    return null
                 }
+                OrientedBitmap(bitmap, rotation)
             }
+        } catch (e: OperationCanceledException) {
+            null
         } catch (e: Exception) {
             Log.w(TAG, "Error decoding ${toString()}", e)
             null
@@ -147,15 +228,37 @@ sealed class ImageLoader {
         Log.w(TAG, "Couldn't open EXIF interface for ${toString()}", e)
     } ?: 0
 
+    /**
+     * Opens the input stream inside a systrace section, as it can involve IPC and disk
+     * or network I/O that would otherwise be hidden in the decode.
+     */
+    private fun tracedOpenInputStream(): InputStream? {
+        Trace.beginSection("ImageLoader.openInputStream")
+        try {
+            return openInputStream()
+        } finally {
+            Trace.endSection()
+        }
+    }
+
     abstract fun openInputStream() : InputStream?
+
+    /**
+     * A key uniquely identifying the image this loader loads, suitable for caching derived
+     * images across process restarts, or null if the image may change over time.
+     */
+    open val cacheKey: String?
+        get() = null
 }
 
 /**
- * An [ImageLoader] capable of loading images from a [ContentResolver]
+ * An [ImageLoader] capable of loading images from a [ContentResolver]. Callers that know
+ * the [uri] always points to the same image should pass a [cacheKey].
  */
 class ContentUriImageLoader constructor(
         private val contentResolver: ContentResolver,
-        private val uri: Uri
+        private val uri: Uri,
+        override val cacheKey: String? = null
 ) : ImageLoader() {
 
     @Throws(FileNotFoundException::class)
@@ -179,7 +282,35 @@ class AssetImageLoader constructor(
     override fun openInputStream(): InputStream? =
             assetManager.open(fileName)
 
+    override val cacheKey: String?
+        get() = "asset:$fileName"
+
     override fun toString(): String {
         return fileName
     }
 }
+
+/**
+ * An [InputStream] that fails all reads once [cancellationSignal] is cancelled, aborting
+ * any decode in progress.
+ */
+private class CancellableInputStream(
+        input: InputStream,
+        private val cancellationSignal: CancellationSignal
+) : FilterInputStream(input) {
+
+    override fun read(): Int {
+        cancellationSignal.throwIfCanceled()
+        return super.read()
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        cancellationSignal.throwIfCanceled()
+        return super.read(b, off, len)
+    }
+
+    override fun skip(n: Long): Long {
+        cancellationSignal.throwIfCanceled()
+        return super.skip(n)
+    }
+}
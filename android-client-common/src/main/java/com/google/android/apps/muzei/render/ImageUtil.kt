@@ -19,6 +19,40 @@ package com.google.android.apps.muzei.render
 import android.graphics.Bitmap
 import android.graphics.Color
 
+/**
+ * The config used for small or blurred renditions of artwork, such as blurred wallpaper
+ * keyframes, widgets and notifications, where the reduced precision isn't noticeable.
+ * Sharp, full size artwork should keep using [Bitmap.Config.ARGB_8888].
+ */
+val RENDITION_CONFIG: Bitmap.Config = Bitmap.Config.RGB_565
+
+/**
+ * Returns a copy of this bitmap in the given [config], recycling this bitmap. Returns
+ * this bitmap if it already uses [config], or if the copy failed.
+ */
+fun Bitmap.convertTo(config: Bitmap.Config): Bitmap {
+    if (this.config == config) {
+        return this
+    }
+    val converted = copy(config, false) ?: return this
+    recycle()
+    return converted
+}
+
+/**
+ * Returns this bitmap scaled down so that its smallest dimension is [minSize], or
+ * this bitmap itself if it is already small enough.
+ */
+fun Bitmap.scaleToMinSize(minSize: Int): Bitmap {
+    val scale = minSize.toFloat() / Math.min(width, height)
+    if (scale >= 1f) {
+        return this
+    }
+    return Bitmap.createScaledBitmap(this,
+            Math.max(1, Math.round(width * scale)),
+            Math.max(1, Math.round(height * scale)), true)
+}
+
 fun Bitmap?.darkness(): Float {
     if (this == null || width == 0 || height == 0) {
         return 0f
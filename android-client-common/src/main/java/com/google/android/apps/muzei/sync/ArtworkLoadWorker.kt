@@ -96,6 +96,10 @@ class ArtworkLoadWorker : Worker() {
     override fun doWork() = runBlocking(syncSingleThreadContext) {
         // Throttle artwork loads
         delay(ARTWORK_LOAD_THROTTLE)
+        if (isStopped) {
+            // Replaced by a newer load while throttling
+            return@runBlocking Result.FAILURE
+        }
         loadArtwork()
     }
 
@@ -124,6 +128,10 @@ class ArtworkLoadWorker : Worker() {
                         // First prioritize new artwork
                         while (newArtwork.moveToNext()) {
                             val validArtwork = checkForValidArtwork(client, contentUri, newArtwork)
+                            if (isStopped) {
+                                // Don't change the artwork if a newer load replaced this one
+                                return Result.FAILURE
+                            }
                             if (validArtwork != null) {
                                 validArtwork.providerComponentName = componentName
                                 val artworkId = database.artworkDao().insert(validArtwork)
@@ -190,7 +198,12 @@ class ArtworkLoadWorker : Worker() {
                                     // Skip previously selected artwork
                                     continue
                                 }
-                                checkForValidArtwork(client, contentUri, allArtwork)?.apply {
+                                if (isStopped) {
+                                    return Result.FAILURE
+                                }
+                                checkForValidArtwork(client, contentUri, allArtwork)?.takeUnless {
+                                    isStopped
+                                }?.apply {
                                     providerComponentName = componentName
                                     artworkId = database.artworkDao().insert(this)
                                     if (BuildConfig.DEBUG) {
@@ -18,41 +18,90 @@ package com.google.android.apps.muzei.util
 
 import android.content.Context
 import android.graphics.Bitmap
+import android.os.Build
 import android.renderscript.Allocation
 import android.renderscript.Element
 import android.renderscript.Matrix3f
+import android.renderscript.RSRuntimeException
 import android.renderscript.RenderScript
 import android.renderscript.ScriptIntrinsicBlur
 import android.renderscript.ScriptIntrinsicColorMatrix
+import android.support.annotation.RequiresApi
+import android.util.Log
 
-fun Bitmap?.blur(context: Context, radius: Float = ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS.toFloat())
-        : Bitmap? {
-    val blurrer = ImageBlurrer(context, this)
+/**
+ * Blurs this bitmap. One-off blurs default to [ImageBlurrer.Backend.CPU] as it avoids
+ * creating a RenderScript context on every call.
+ */
+fun Bitmap?.blur(
+        context: Context,
+        radius: Float = ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS.toFloat(),
+        backend: ImageBlurrer.Backend = ImageBlurrer.Backend.CPU
+): Bitmap? {
+    val blurrer = ImageBlurrer(context, this, backend)
     val blurred = blurrer.blurBitmap(radius)
     blurrer.destroy()
     return blurred
 }
 
-class ImageBlurrer(context: Context, private val sourceBitmap: Bitmap?) {
+class ImageBlurrer @JvmOverloads constructor(
+        context: Context,
+        private val sourceBitmap: Bitmap?,
+        requestedBackend: Backend = Backend.RENDERSCRIPT
+) {
 
     companion object {
+        private const val TAG = "ImageBlurrer"
         const val MAX_SUPPORTED_BLUR_PIXELS = 25
     }
 
-    private val renderScript: RenderScript = RenderScript.create(context)
-    private val scriptIntrinsicBlur: ScriptIntrinsicBlur
-    private val scriptIntrinsicGrey: ScriptIntrinsicColorMatrix
-    private val allocationSrc: Allocation?
+    /**
+     * The available implementations of the blur and desaturate operations.
+     */
+    enum class Backend {
+        /**
+         * Uses RenderScript intrinsics. Falls back to [CPU] if RenderScript is unavailable.
+         */
+        RENDERSCRIPT,
+        /**
+         * Uses [CpuBlurrer]. Falls back to [RENDERSCRIPT] before API 21.
+         */
+        CPU
+    }
 
-    init {
-        scriptIntrinsicBlur = ScriptIntrinsicBlur.create(renderScript, Element.U8_4(renderScript))
-        scriptIntrinsicGrey = ScriptIntrinsicColorMatrix.create(renderScript)
-        allocationSrc = if (sourceBitmap != null) Allocation.createFromBitmap(renderScript, sourceBitmap) else null
+    /**
+     * A blur and desaturate implementation, bound to a single source bitmap.
+     */
+    private interface BlurBackend {
+        /**
+         * Writes the blurred and desaturated source bitmap into [dest], which has the same
+         * size and config as the source bitmap.
+         */
+        fun blur(dest: Bitmap, radius: Float, desaturateAmount: Float)
+
+        fun destroy()
+    }
+
+    private val backend: BlurBackend? = sourceBitmap?.let { bitmap ->
+        if (requestedBackend == Backend.CPU &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            CpuBlurBackend(bitmap)
+        } else {
+            try {
+                RenderScriptBlurBackend(context, bitmap)
+            } catch (e: RSRuntimeException) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    throw e
+                }
+                Log.w(TAG, "RenderScript unavailable, falling back to CPU blurring", e)
+                CpuBlurBackend(bitmap)
+            }
+        }
     }
 
     @JvmOverloads
     fun blurBitmap(radius: Float = MAX_SUPPORTED_BLUR_PIXELS.toFloat(), desaturateAmount: Float = 0f): Bitmap? {
-        if (sourceBitmap == null || allocationSrc == null) {
+        if (sourceBitmap == null || backend == null) {
             return null
         }
 
@@ -61,50 +110,106 @@ class ImageBlurrer(context: Context, private val sourceBitmap: Bitmap?) {
             return dest
         }
 
-        val allocationDest = Allocation.createFromBitmap(renderScript, dest)
-
-        if (radius > 0f && desaturateAmount > 0f) {
-            doBlur(radius, allocationSrc, allocationDest)
-            doDesaturate(desaturateAmount.constrain(0f, 1f), allocationDest, allocationSrc)
-            allocationSrc.copyTo(dest)
-        } else if (radius > 0f) {
-            doBlur(radius, allocationSrc, allocationDest)
-            allocationDest.copyTo(dest)
-        } else {
-            doDesaturate(desaturateAmount.constrain(0f, 1f), allocationSrc, allocationDest)
-            allocationDest.copyTo(dest)
-        }
-        allocationDest.destroy()
+        backend.blur(dest, radius, desaturateAmount.constrain(0f, 1f))
         return dest
     }
 
-    private fun doBlur(amount: Float, input: Allocation, output: Allocation) {
-        scriptIntrinsicBlur.setRadius(amount)
-        scriptIntrinsicBlur.setInput(input)
-        scriptIntrinsicBlur.forEach(output)
+    fun destroy() {
+        backend?.destroy()
     }
 
-    private fun doDesaturate(normalizedAmount: Float, input: Allocation, output: Allocation) {
-        val m = Matrix3f(floatArrayOf(
-                interpolate(1f, 0.299f, normalizedAmount),
-                interpolate(0f, 0.299f, normalizedAmount),
-                interpolate(0f, 0.299f, normalizedAmount),
-
-                interpolate(0f, 0.587f, normalizedAmount),
-                interpolate(1f, 0.587f, normalizedAmount),
-                interpolate(0f, 0.587f, normalizedAmount),
-
-                interpolate(0f, 0.114f, normalizedAmount),
-                interpolate(0f, 0.114f, normalizedAmount),
-                interpolate(1f, 0.114f, normalizedAmount)))
-        scriptIntrinsicGrey.setColorMatrix(m)
-        scriptIntrinsicGrey.forEach(input, output)
+    private class RenderScriptBlurBackend(
+            context: Context,
+            sourceBitmap: Bitmap
+    ) : BlurBackend {
+        private val renderScript: RenderScript = RenderScript.create(context)
+        private val scriptIntrinsicBlur: ScriptIntrinsicBlur =
+                ScriptIntrinsicBlur.create(renderScript, Element.U8_4(renderScript))
+        private val scriptIntrinsicGrey: ScriptIntrinsicColorMatrix =
+                ScriptIntrinsicColorMatrix.create(renderScript)
+        private val allocationSrc: Allocation =
+                Allocation.createFromBitmap(renderScript, sourceBitmap)
+
+        override fun blur(dest: Bitmap, radius: Float, desaturateAmount: Float) {
+            val allocationDest = Allocation.createFromBitmap(renderScript, dest)
+
+            if (radius > 0f && desaturateAmount > 0f) {
+                doBlur(radius, allocationSrc, allocationDest)
+                doDesaturate(desaturateAmount, allocationDest, allocationSrc)
+                allocationSrc.copyTo(dest)
+            } else if (radius > 0f) {
+                doBlur(radius, allocationSrc, allocationDest)
+                allocationDest.copyTo(dest)
+            } else {
+                doDesaturate(desaturateAmount, allocationSrc, allocationDest)
+                allocationDest.copyTo(dest)
+            }
+            allocationDest.destroy()
+        }
+
+        private fun doBlur(amount: Float, input: Allocation, output: Allocation) {
+            scriptIntrinsicBlur.setRadius(amount)
+            scriptIntrinsicBlur.setInput(input)
+            scriptIntrinsicBlur.forEach(output)
+        }
+
+        private fun doDesaturate(normalizedAmount: Float, input: Allocation, output: Allocation) {
+            val m = Matrix3f(floatArrayOf(
+                    interpolate(1f, 0.299f, normalizedAmount),
+                    interpolate(0f, 0.299f, normalizedAmount),
+                    interpolate(0f, 0.299f, normalizedAmount),
+
+                    interpolate(0f, 0.587f, normalizedAmount),
+                    interpolate(1f, 0.587f, normalizedAmount),
+                    interpolate(0f, 0.587f, normalizedAmount),
+
+                    interpolate(0f, 0.114f, normalizedAmount),
+                    interpolate(0f, 0.114f, normalizedAmount),
+                    interpolate(1f, 0.114f, normalizedAmount)))
+            scriptIntrinsicGrey.setColorMatrix(m)
+            scriptIntrinsicGrey.forEach(input, output)
+        }
+
+        override fun destroy() {
+            scriptIntrinsicBlur.destroy()
+            scriptIntrinsicGrey.destroy()
+            allocationSrc.destroy()
+            renderScript.destroy()
+        }
     }
 
-    fun destroy() {
-        scriptIntrinsicBlur.destroy()
-        scriptIntrinsicGrey.destroy()
-        allocationSrc?.destroy()
-        renderScript.destroy()
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private class CpuBlurBackend(private val sourceBitmap: Bitmap) : BlurBackend {
+        companion object {
+            /**
+             * The engine and pixel buffer shared by all CPU blurs, so that blurring doesn't
+             * allocate once the buffer is as large as the largest image blurred so far.
+             * Blurs are serialized on it, which costs little as [CpuBlurrer] already
+             * spreads each blur across all cores.
+             */
+            private val scratch = CpuBlurScratch()
+        }
+
+        private class CpuBlurScratch {
+            val blurrer = CpuBlurrer()
+            var pixels = IntArray(0)
+        }
+
+        override fun blur(dest: Bitmap, radius: Float, desaturateAmount: Float) {
+            val width = sourceBitmap.width
+            val height = sourceBitmap.height
+            synchronized(scratch) {
+                if (scratch.pixels.size < width * height) {
+                    scratch.pixels = IntArray(width * height)
+                }
+                val pixels = scratch.pixels
+                sourceBitmap.getPixels(pixels, 0, width, 0, 0, width, height)
+                scratch.blurrer.blur(pixels, width, height, radius, desaturateAmount)
+                dest.setPixels(pixels, 0, width, 0, 0, width, height)
+            }
+        }
+
+        override fun destroy() {
+        }
     }
 }
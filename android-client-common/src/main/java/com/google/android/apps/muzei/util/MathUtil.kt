@@ -18,6 +18,8 @@ package com.google.android.apps.muzei.util
 
 fun Float.constrain(min: Float, max: Float): Float = Math.max(min, Math.min(max, this))
 
+fun Int.constrain(min: Int, max: Int): Int = Math.max(min, Math.min(max, this))
+
 fun interpolate(x1: Float, x2: Float, f: Float): Float = x1 + (x2 - x1) * f
 
 fun uninterpolate(x1: Float, x2: Float, v: Float): Float {
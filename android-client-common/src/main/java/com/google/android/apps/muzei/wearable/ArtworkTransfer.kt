@@ -21,6 +21,25 @@ import androidx.core.os.bundleOf
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.gms.wearable.DataMap
 
+/**
+ * Path of the DataItem holding the current artwork and its image
+ */
+const val ARTWORK_PATH = "/artwork"
+/**
+ * Path of the DataItem holding only the [KEY_ARTWORK_ID] of the current artwork, published
+ * instead of [ARTWORK_PATH] when all watches pull artwork with [ARTWORK_REQUEST_PATH]
+ */
+const val ARTWORK_MARKER_PATH = "/artwork_marker"
+/**
+ * Path of the message a watch sends to ask the phone to publish [ARTWORK_PATH]
+ */
+const val ARTWORK_REQUEST_PATH = "/artwork/request"
+/**
+ * Capability of watches that pull artwork when it is needed rather than having it pushed
+ */
+const val PULL_ARTWORK_CAPABILITY = "muzei_pull_artwork"
+const val KEY_ARTWORK_ID = "artworkId"
+
 private const val KEY_IMAGE_URI = "imageUri"
 private const val KEY_TITLE = "title"
 private const val KEY_BYLINE = "byline"
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.wearable
+
+/**
+ * Path of the DataItem each watch publishes describing itself, so that the phone can
+ * send artwork sized for its screen.
+ */
+const val WATCH_INFO_PATH = "/watch_info"
+const val KEY_SCREEN_WIDTH = "screenWidth"
+const val KEY_SCREEN_HEIGHT = "screenHeight"
+
+/**
+ * Capability a watch advertises while the Muzei watch face is visible on it.
+ */
+const val WATCH_FACE_VISIBLE_CAPABILITY = "muzei_watch_face_visible"
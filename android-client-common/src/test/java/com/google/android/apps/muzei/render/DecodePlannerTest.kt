@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.graphics.Bitmap
+import com.google.android.apps.muzei.util.divideRoundUp
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DecodePlannerTest {
+
+    @Test
+    fun blurKeyframes() {
+        assertEquals(2, DecodePlanner.blurKeyframes(192, false))
+        assertEquals(2, DecodePlanner.blurKeyframes(64, false))
+        assertEquals(1, DecodePlanner.blurKeyframes(48, false))
+        assertEquals(1, DecodePlanner.blurKeyframes(192, true))
+    }
+
+    @Test
+    fun planWallpaperKeepsFullSizeWhenItFits() {
+        assertEquals(DecodePlan(1440, 2960, 1, Bitmap.Config.ARGB_8888, 2),
+                DecodePlanner.planWallpaper(192, false, 2960, 1440, 2960))
+    }
+
+    @Test
+    fun planWallpaperSamplesDownToSurfaceHeight() {
+        assertEquals(DecodePlan(4000, 2000, 2, Bitmap.Config.ARGB_8888, 2),
+                DecodePlanner.planWallpaper(256, false, 1000, 8000, 4000))
+    }
+
+    @Test
+    fun planWallpaperSamplesDownRatherThanUsingRgb565() {
+        // 6000x4000 at 4 bytes per pixel is twice the 48MB budget
+        assertEquals(DecodePlan(3000, 2000, 2, Bitmap.Config.ARGB_8888, 2),
+                DecodePlanner.planWallpaper(192, false, 2960, 6000, 4000))
+        assertEquals(DecodePlan(750, 500, 8, Bitmap.Config.ARGB_8888, 1),
+                DecodePlanner.planWallpaper(16, true, 2960, 6000, 4000))
+    }
+
+    @Test
+    fun planWallpaperAlwaysFitsBudgetAtFullPrecision() {
+        for (memoryClass in intArrayOf(16, 32, 64, 128, 192, 256, 512)) {
+            for ((width, height) in listOf(1 to 1, 1440 to 2960, 6000 to 4000,
+                    20000 to 1000, 1000 to 20000)) {
+                val plan = DecodePlanner.planWallpaper(memoryClass, false, 2960,
+                        width, height)
+                assertEquals(Bitmap.Config.ARGB_8888, plan.config)
+                assertEquals(width.divideRoundUp(plan.sampleSize), plan.width)
+                assertEquals(height.divideRoundUp(plan.sampleSize), plan.height)
+                val bytes = plan.width.toLong() * plan.height * 4
+                assertTrue("$plan uses $bytes bytes with memory class $memoryClass",
+                        bytes <= memoryClass.toLong() * 1024 * 1024 / 4)
+            }
+        }
+    }
+
+    @Test
+    fun planWallpaperWithoutArtworkOrSurface() {
+        assertEquals(DecodePlan(0, 0, 1, Bitmap.Config.ARGB_8888, 2),
+                DecodePlanner.planWallpaper(192, false, 2960, 0, 0))
+        assertEquals(DecodePlan(0, 0, 1, Bitmap.Config.ARGB_8888, 2),
+                DecodePlanner.planWallpaper(192, false, 0, 1440, 2960))
+    }
+
+    @Test
+    fun planWidgetFitsLargestDimension() {
+        assertEquals(DecodePlan(400, 300, 16, RENDITION_CONFIG),
+                DecodePlanner.planWidget(1080, 1920, 400, 200, 4000, 3000))
+        assertEquals(DecodePlan(300, 400, 32, RENDITION_CONFIG),
+                DecodePlanner.planWidget(1080, 1920, 400, 200, 3000, 4000))
+        assertEquals(DecodePlan(400, 400, 8, RENDITION_CONFIG),
+                DecodePlanner.planWidget(1080, 1920, 400, 200, 1000, 1000))
+    }
+
+    @Test
+    fun planWidgetStaysWithinRemoteViewsBudget() {
+        // A 100x100 display only allows 60000 bytes of bitmaps
+        assertEquals(DecodePlan(100, 100, 4, RENDITION_CONFIG),
+                DecodePlanner.planWidget(100, 100, 400, 400, 1000, 1000))
+    }
+
+    @Test
+    fun planWidgetWithoutArtworkOrWidget() {
+        assertEquals(DecodePlan(0, 0, 1, RENDITION_CONFIG),
+                DecodePlanner.planWidget(1080, 1920, 400, 200, 0, 0))
+        assertEquals(DecodePlan(0, 0, 1, RENDITION_CONFIG),
+                DecodePlanner.planWidget(1080, 1920, 0, 0, 4000, 3000))
+    }
+
+    @Test
+    fun planThumbnailCoversThumbnail() {
+        val plan = DecodePlanner.planThumbnail(256, 256, 4000, 3000)
+        assertEquals(DecodePlan(341, 256, 8, Bitmap.Config.ARGB_8888), plan)
+        // The subsampled artwork must still be at least as large as the thumbnail
+        assertTrue(4000.divideRoundUp(plan.sampleSize) >= plan.width)
+        assertTrue(3000.divideRoundUp(plan.sampleSize) >= plan.height)
+    }
+
+    @Test
+    fun planThumbnailNeverUpscales() {
+        assertEquals(DecodePlan(200, 100, 1, Bitmap.Config.ARGB_8888),
+                DecodePlanner.planThumbnail(512, 512, 200, 100))
+    }
+
+    @Test
+    fun planThumbnailWithoutArtworkOrSize() {
+        assertEquals(DecodePlan(0, 0, 1, Bitmap.Config.ARGB_8888),
+                DecodePlanner.planThumbnail(256, 256, 0, 0))
+        assertEquals(DecodePlan(0, 0, 1, Bitmap.Config.ARGB_8888),
+                DecodePlanner.planThumbnail(0, 0, 4000, 3000))
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Ignore
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.ForkJoinPool
+import java.util.logging.Logger
+
+/**
+ * Times [CpuBlurrer] on wallpaper sized images, single threaded and across all cores.
+ * It is ignored so that it doesn't slow down every test run: remove the [Ignore] to run
+ * it, e.g. with `./gradlew :android-client-common:testDebugUnitTest -i`, and the
+ * timings are logged.
+ */
+@Ignore("Benchmark, run manually")
+class CpuBlurrerBenchmark {
+
+    companion object {
+        private const val WARM_UP_ITERATIONS = 5
+        private const val ITERATIONS = 20
+        // A scaled down keyframe of a 1440x2960 screen, as blurred by MuzeiBlurRenderer
+        private const val WIDTH = 720
+        private const val HEIGHT = 1480
+
+        private val logger = Logger.getLogger(CpuBlurrerBenchmark::class.java.name)
+    }
+
+    private fun benchmark(name: String, blurrer: CpuBlurrer, radius: Float) {
+        val source = Random(42).run {
+            IntArray(WIDTH * HEIGHT) { 0xff000000.toInt() or nextInt(0x1000000) }
+        }
+        val pixels = IntArray(source.size)
+        repeat(WARM_UP_ITERATIONS) {
+            System.arraycopy(source, 0, pixels, 0, pixels.size)
+            blurrer.blur(pixels, WIDTH, HEIGHT, radius, 0.5f)
+        }
+        val expected = pixels.copyOf()
+        val durations = LongArray(ITERATIONS) {
+            System.arraycopy(source, 0, pixels, 0, pixels.size)
+            val startNanos = System.nanoTime()
+            blurrer.blur(pixels, WIDTH, HEIGHT, radius, 0.5f)
+            val durationNanos = System.nanoTime() - startNanos
+            // Every run has to do the same work for the timings to be comparable
+            assertArrayEquals(expected, pixels)
+            durationNanos
+        }
+        durations.sort()
+        logger.info(String.format("%s, radius %.0f, %dx%d: median %.2fms, min %.2fms, max %.2fms",
+                name, radius, WIDTH, HEIGHT,
+                durations[ITERATIONS / 2] / 1e6,
+                durations[0] / 1e6,
+                durations[ITERATIONS - 1] / 1e6))
+    }
+
+    @Test
+    fun singleThreaded() {
+        val blurrer = CpuBlurrer(ForkJoinPool(1), 1)
+        benchmark("Single thread", blurrer, 8f)
+        benchmark("Single thread", blurrer, ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS.toFloat())
+    }
+
+    @Test
+    fun parallel() {
+        val cores = Runtime.getRuntime().availableProcessors()
+        val blurrer = CpuBlurrer(ForkJoinPool(cores), cores)
+        benchmark("$cores threads", blurrer, 8f)
+        benchmark("$cores threads", blurrer, ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS.toFloat())
+    }
+}
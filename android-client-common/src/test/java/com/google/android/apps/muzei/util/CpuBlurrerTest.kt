@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.Random
+import java.util.concurrent.ForkJoinPool
+
+class CpuBlurrerTest {
+
+    companion object {
+        private const val WIDTH = 64
+        private const val HEIGHT = 48
+        private const val OPAQUE_BLACK = 0xff000000.toInt()
+        private const val OPAQUE_WHITE = 0xffffffff.toInt()
+    }
+
+    private fun Int.alpha() = this ushr 24
+    private fun Int.red() = (this shr 16) and 0xff
+    private fun Int.green() = (this shr 8) and 0xff
+    private fun Int.blue() = this and 0xff
+
+    private fun randomPixels(seed: Long = 42) = Random(seed).run {
+        IntArray(WIDTH * HEIGHT) { OPAQUE_BLACK or nextInt(0x1000000) }
+    }
+
+    private fun singleThreadBlurrer() = CpuBlurrer(ForkJoinPool(1), 1)
+
+    @Test
+    fun zeroRadiusWithoutDesaturateLeavesPixelsUnchanged() {
+        val pixels = randomPixels()
+        val original = pixels.copyOf()
+        singleThreadBlurrer().blur(pixels, WIDTH, HEIGHT, 0f)
+        assertArrayEquals(original, pixels)
+    }
+
+    @Test
+    fun uniformImageStaysUniform() {
+        val color = 0xff336699.toInt()
+        val pixels = IntArray(WIDTH * HEIGHT) { color }
+        singleThreadBlurrer().blur(pixels, WIDTH, HEIGHT, 10f)
+        pixels.forEach { pixel ->
+            // Fixed point rounding may lose at most one step per channel
+            assertEquals(0xff, pixel.alpha())
+            assertEquals(0x33.toDouble(), pixel.red().toDouble(), 1.0)
+            assertEquals(0x66.toDouble(), pixel.green().toDouble(), 1.0)
+            assertEquals(0x99.toDouble(), pixel.blue().toDouble(), 1.0)
+        }
+    }
+
+    @Test
+    fun pointSpreadsSymmetrically() {
+        val size = 41
+        val center = size / 2
+        val pixels = IntArray(size * size) { OPAQUE_BLACK }
+        pixels[center * size + center] = OPAQUE_WHITE
+        singleThreadBlurrer().blur(pixels, size, size, 5f)
+        val centerRed = pixels[center * size + center].red()
+        assertTrue("Center should be dimmed, was $centerRed", centerRed < 0xff)
+        for (offset in 1..center) {
+            val left = pixels[center * size + center - offset].red()
+            val right = pixels[center * size + center + offset].red()
+            val top = pixels[(center - offset) * size + center].red()
+            val bottom = pixels[(center + offset) * size + center].red()
+            assertEquals(left.toDouble(), right.toDouble(), 1.0)
+            assertEquals(top.toDouble(), bottom.toDouble(), 1.0)
+            assertEquals(left.toDouble(), top.toDouble(), 1.0)
+            assertTrue("Blur should not increase away from the center",
+                    left <= pixels[center * size + center - offset + 1].red())
+        }
+        assertTrue("Neighbors of the point should be lit",
+                pixels[center * size + center - 1].red() > 0)
+    }
+
+    @Test
+    fun fullDesaturateProducesGrey() {
+        val pixels = randomPixels()
+        singleThreadBlurrer().blur(pixels, WIDTH, HEIGHT, 0f, 1f)
+        pixels.forEach { pixel ->
+            assertEquals(pixel.red(), pixel.green())
+            assertEquals(pixel.green(), pixel.blue())
+        }
+    }
+
+    @Test
+    fun desaturateIsFusedIntoBlur() {
+        val pixels = randomPixels()
+        singleThreadBlurrer().blur(pixels, WIDTH, HEIGHT, 8f, 1f)
+        pixels.forEach { pixel ->
+            assertEquals(pixel.red(), pixel.green())
+            assertEquals(pixel.green(), pixel.blue())
+        }
+    }
+
+    @Test
+    fun parallelBlurMatchesSingleThreadBlur() {
+        val expected = randomPixels()
+        singleThreadBlurrer().blur(expected, WIDTH, HEIGHT, 12f, 0.5f)
+        val actual = randomPixels()
+        CpuBlurrer(ForkJoinPool(4), 4).blur(actual, WIDTH, HEIGHT, 12f, 0.5f)
+        assertArrayEquals(expected, actual)
+    }
+
+    @Test
+    fun repeatedBlursDontAllocate() {
+        val threadBean = ManagementFactory.getThreadMXBean()
+        assumeTrue(threadBean is com.sun.management.ThreadMXBean)
+        threadBean as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        // A single task runs on the calling thread, so all allocations are measured
+        val blurrer = singleThreadBlurrer()
+        val pixels = randomPixels()
+        // Warm up the scratch buffers
+        blurrer.blur(pixels, WIDTH, HEIGHT, 25f, 0.5f)
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        repeat(10) {
+            blurrer.blur(pixels, WIDTH, HEIGHT, 25f, 0.5f)
+        }
+        val allocated = threadBean.getThreadAllocatedBytes(threadId) - before
+        // Allow for the odd allocation of the measurement itself
+        assertTrue("Blurring allocated $allocated bytes", allocated < 1024)
+    }
+}
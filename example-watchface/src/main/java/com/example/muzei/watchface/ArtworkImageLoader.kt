@@ -76,7 +76,14 @@ class ArtworkImageLoader(private val context: Context) : MutableLiveData<Bitmap>
         future = executor.submit {
             try {
                 val size = requestedSize
-                MuzeiContract.Artwork.getCurrentArtworkBitmap(context)?.run {
+                // Subsample while decoding so we never hold the full size artwork in memory
+                val bitmap = if (size != null) {
+                    MuzeiContract.Artwork.getCurrentArtworkBitmap(context,
+                            size.width, size.height)
+                } else {
+                    MuzeiContract.Artwork.getCurrentArtworkBitmap(context)
+                }
+                bitmap?.run {
                     when {
                         size == null -> this
                         width > height -> {
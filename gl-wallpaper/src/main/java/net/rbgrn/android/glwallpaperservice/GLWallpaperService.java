@@ -17,7 +17,9 @@
 package net.rbgrn.android.glwallpaperservice;
 
 import java.io.Writer;
-import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -56,6 +58,7 @@ public class GLWallpaperService extends WallpaperService {
                 private GLSurfaceView.GLWrapper mGLWrapper;
                 private int mDebugFlags;
                 private int mEGLContextClientVersion;
+                private boolean mPreserveEGLContextOnPause = true;
 
                 public GLEngine() {
                         super();
@@ -132,6 +135,7 @@ public class GLWallpaperService extends WallpaperService {
                                 mEGLWindowSurfaceFactory = new DefaultWindowSurfaceFactory();
                         }
                         mGLThread = new GLThread(renderer, mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
+                        mGLThread.setPreserveEGLContextOnPause(mPreserveEGLContextOnPause);
                         mGLThread.start();
                 }
 
@@ -167,6 +171,31 @@ public class GLWallpaperService extends WallpaperService {
                     mEGLContextClientVersion = version;
                 }
 
+                /**
+                 * Control whether the EGL context is preserved when the engine is paused.
+                 * <p>
+                 * If set to true, the EGL context (and with it all textures, buffers and
+                 * programs) is kept while paused, and the renderer's onSurfaceCreated is
+                 * only called again if the context was actually lost. Otherwise the
+                 * context is released when pausing, as with
+                 * {@link GLSurfaceView#setPreserveEGLContextOnPause(boolean)}.
+                 * <p>
+                 * The EGL context is always preserved when only the surface is destroyed.
+                 * Defaults to true.
+                 *
+                 * @param preserveOnPause preserve the EGL context when paused
+                 */
+                public void setPreserveEGLContextOnPause(boolean preserveOnPause) {
+                        mPreserveEGLContextOnPause = preserveOnPause;
+                        if (mGLThread != null) {
+                                mGLThread.setPreserveEGLContextOnPause(preserveOnPause);
+                        }
+                }
+
+                public boolean getPreserveEGLContextOnPause() {
+                        return mPreserveEGLContextOnPause;
+                }
+
                 public void setRenderMode(int renderMode) {
                         mGLThread.setRenderMode(renderMode);
                 }
@@ -342,9 +371,9 @@ class EglHelper {
         /**
          * Initialize EGL for a given configuration spec.
          *
-         * @param configSpec
+         * @return true if a new EGL context was created, false if the existing one is reused.
          */
-        public void start() {
+        public boolean start() {
                 // Log.d("EglHelper" + instanceId, "start()");
                 if (mEgl == null) {
                         // Log.d("EglHelper" + instanceId, "getting new EGL");
@@ -362,6 +391,8 @@ class EglHelper {
                          * Get to the default display.
                          */
                         mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+                        // The display needs to be initialized again after finish()
+                        mEglConfig = null;
                 } else {
                         // Log.d("EglHelper" + instanceId, "reusing display");
                 }
@@ -378,6 +409,7 @@ class EglHelper {
                         // Log.d("EglHelper" + instanceId, "reusing config");
                 }
 
+                boolean createdContext = false;
                 if (mEglContext == null) {
                         // Log.d("EglHelper" + instanceId, "creating new context");
                         /*
@@ -387,11 +419,13 @@ class EglHelper {
                         if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
                                 throw new RuntimeException("createContext failed");
                         }
+                        createdContext = true;
                 } else {
                         // Log.d("EglHelper" + instanceId, "reusing context");
                 }
 
                 mEglSurface = null;
+                return createdContext;
         }
 
         /*
@@ -464,11 +498,20 @@ class EglHelper {
                 }
         }
 
-        public void finish() {
+        /**
+         * Destroy the EGL context, and with it all of its textures, buffers and programs. The
+         * display stays initialized so that the next call to {@link #start()} only has to
+         * create a new context.
+         */
+        public void destroyContext() {
                 if (mEglContext != null) {
                         mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
                         mEglContext = null;
                 }
+        }
+
+        public void finish() {
+                destroyContext();
                 if (mEglDisplay != null) {
                         mEgl.eglTerminate(mEglDisplay);
                         mEglDisplay = null;
@@ -492,9 +535,9 @@ class GLThread extends Thread {
         public SurfaceHolder mHolder;
         private boolean mSizeChanged = true;
 
-        // Once the thread is started, all accesses to the following member
-        // variables are protected by the sGLThreadManager monitor
-        public boolean mDone;
+        // Once the thread is started, all writes to mDone and all accesses to the
+        // following member variables are protected by the sGLThreadManager monitor
+        public volatile boolean mDone;
         private boolean mPaused;
         private boolean mHasSurface;
         private boolean mWaitingForSurface;
@@ -503,11 +546,15 @@ class GLThread extends Thread {
         private int mHeight;
         private int mRenderMode;
         private boolean mRequestRender;
-        private boolean mEventsWaiting;
+        private boolean mPreserveEGLContextOnPause = true;
         // End of member variables protected by the sGLThreadManager monitor.
 
         private GLSurfaceView.Renderer mRenderer;
-        private ArrayList<Runnable> mEventQueue = new ArrayList<Runnable>();
+        // Events can be queued from any thread without locking. Only the first event
+        // queued while the GLThread isn't already draining the queue takes the
+        // sGLThreadManager monitor, to wake the GLThread up.
+        private final Queue<Runnable> mEventQueue = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean mEventsWaiting = new AtomicBoolean();
         private EglHelper mEglHelper;
 
         GLThread(GLSurfaceView.Renderer renderer, GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
@@ -552,6 +599,14 @@ class GLThread extends Thread {
                 }
         }
 
+        /*
+         * This private method should only be called inside a synchronized(sGLThreadManager) block.
+         */
+        private void stopEglContextLocked() {
+                stopEglLocked();
+                mEglHelper.destroyContext();
+        }
+
         private void guardedRun() throws InterruptedException {
                 mEglHelper = new EglHelper(mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
                 try {
@@ -570,6 +625,7 @@ class GLThread extends Thread {
                                 int h = 0;
                                 boolean changed = false;
                                 boolean needStart = false;
+                                boolean createdContext = false;
                                 boolean eventsWaiting = false;
 
                                 synchronized (sGLThreadManager) {
@@ -577,7 +633,11 @@ class GLThread extends Thread {
                                                 // Manage acquiring and releasing the SurfaceView
                                                 // surface and the EGL surface.
                                                 if (mPaused) {
-                                                        stopEglLocked();
+                                                        if (mPreserveEGLContextOnPause) {
+                                                                stopEglLocked();
+                                                        } else {
+                                                                stopEglContextLocked();
+                                                        }
                                                 }
                                                 if (!mHasSurface) {
                                                         if (!mWaitingForSurface) {
@@ -589,7 +649,7 @@ class GLThread extends Thread {
                                                         if (!mHaveEgl) {
                                                                 if (sGLThreadManager.tryAcquireEglSurface(this)) {
                                                                         mHaveEgl = true;
-                                                                        mEglHelper.start();
+                                                                        createdContext = mEglHelper.start();
                                                                         mRequestRender = true;
                                                                         needStart = true;
                                                                 }
@@ -605,9 +665,8 @@ class GLThread extends Thread {
                                                         return;
                                                 }
 
-                                                if (mEventsWaiting) {
+                                                if (mEventsWaiting.getAndSet(false)) {
                                                         eventsWaiting = true;
-                                                        mEventsWaiting = false;
                                                         break;
                                                 }
 
@@ -640,7 +699,7 @@ class GLThread extends Thread {
                                  */
                                 if (eventsWaiting) {
                                         Runnable r;
-                                        while ((r = getEvent()) != null) {
+                                        while ((r = mEventQueue.poll()) != null) {
                                                 r.run();
                                                 if (isDone()) {
                                                         return;
@@ -651,7 +710,12 @@ class GLThread extends Thread {
                                 }
 
                                 if (needStart) {
-                                        tellRendererSurfaceCreated = true;
+                                        // Only a new EGL context needs the renderer to recreate
+                                        // its GL objects, a new surface for a preserved context
+                                        // only needs onSurfaceChanged
+                                        if (createdContext) {
+                                                tellRendererSurfaceCreated = true;
+                                        }
                                         changed = true;
                                 }
                                 if (changed) {
@@ -674,7 +738,13 @@ class GLThread extends Thread {
                                          * Once we're done with GL, we need to call swapBuffers() to instruct the system to display the
                                          * rendered frame
                                          */
-                                        mEglHelper.swap();
+                                        if (!mEglHelper.swap()) {
+                                                // The context was lost, so a new one needs to
+                                                // be created along with a new surface
+                                                synchronized (sGLThreadManager) {
+                                                        stopEglContextLocked();
+                                                }
+                                        }
                                         Thread.sleep(10);
                                 }
                         }
@@ -690,9 +760,7 @@ class GLThread extends Thread {
         }
 
         private boolean isDone() {
-                synchronized (sGLThreadManager) {
-                        return mDone;
-                }
+                return mDone;
         }
 
         public void setRenderMode(int renderMode) {
@@ -748,6 +816,12 @@ class GLThread extends Thread {
                 }
         }
 
+        public void setPreserveEGLContextOnPause(boolean preserveOnPause) {
+                synchronized (sGLThreadManager) {
+                        mPreserveEGLContextOnPause = preserveOnPause;
+                }
+        }
+
         public void onPause() {
                 synchronized (sGLThreadManager) {
                         mPaused = true;
@@ -793,25 +867,16 @@ class GLThread extends Thread {
          * the runnable to be run on the GL rendering thread.
          */
         public void queueEvent(Runnable r) {
-                synchronized (this) {
-                        mEventQueue.add(r);
+                mEventQueue.offer(r);
+                // If events were already waiting, the GLThread has been woken up and will
+                // drain this event along with them
+                if (mEventsWaiting.compareAndSet(false, true)) {
                         synchronized (sGLThreadManager) {
-                                mEventsWaiting = true;
                                 sGLThreadManager.notifyAll();
                         }
                 }
         }
 
-        private Runnable getEvent() {
-                synchronized (this) {
-                        if (mEventQueue.size() > 0) {
-                                return mEventQueue.remove(0);
-                        }
-
-                }
-                return null;
-        }
-
         private class GLThreadManager {
 
                 public synchronized void threadExiting(GLThread thread) {
@@ -20,9 +20,18 @@ import android.arch.lifecycle.MutableLiveData
 import android.graphics.RectF
 
 // Singleton that can be observed
+//
+// The viewports are written from both the main thread and the GL thread, and read on
+// the GL thread while drawing. Writers build the next pair of viewports off to the side
+// and publish it with a single volatile write, so readers always see a consistent
+// snapshot without locking.
 object ArtDetailViewport {
-    private val viewport0 = RectF()
-    private val viewport1 = RectF()
+    private class Viewports(val viewport0: RectF, val viewport1: RectF) {
+        operator fun get(id: Int) = if (id == 0) viewport0 else viewport1
+    }
+
+    @Volatile
+    private var viewports = Viewports(RectF(), RectF())
     private val observers = mutableListOf<(isFromUser: Boolean) -> Unit>()
     private val changeLiveData = MutableLiveData<Boolean>().apply {
         // Make sure we trigger observers on the main thread
@@ -39,8 +48,29 @@ object ArtDetailViewport {
         observers.remove(observer)
     }
 
+    /**
+     * Returns a copy of the viewport with the given [id]
+     */
     fun getViewport(id: Int): RectF {
-        return if (id == 0) viewport0 else viewport1
+        return RectF(viewports[id])
+    }
+
+    /**
+     * Copies the viewport with the given [id] into [outViewport], returning it
+     */
+    fun getViewport(id: Int, outViewport: RectF): RectF {
+        outViewport.set(viewports[id])
+        return outViewport
+    }
+
+    private inline fun updateViewport(id: Int, update: RectF.() -> Unit) {
+        synchronized(this) {
+            val current = viewports
+            val viewport0 = RectF(current.viewport0)
+            val viewport1 = RectF(current.viewport1)
+            (if (id == 0) viewport0 else viewport1).update()
+            viewports = Viewports(viewport0, viewport1)
+        }
     }
 
     fun setViewport(id: Int, viewport: RectF, fromUser: Boolean = false) {
@@ -56,7 +86,9 @@ object ArtDetailViewport {
             bottom: Float,
             isFromUser: Boolean = false
     ) {
-        getViewport(id).set(left, top, right, bottom)
+        updateViewport(id) {
+            set(left, top, right, bottom)
+        }
         changeLiveData.postValue(isFromUser)
     }
 
@@ -65,18 +97,18 @@ object ArtDetailViewport {
             bitmapAspectRatio: Float,
             screenAspectRatio: Float
     ): ArtDetailViewport {
-        if (bitmapAspectRatio > screenAspectRatio) {
-            getViewport(id).set(
-                    0.5f - screenAspectRatio / bitmapAspectRatio / 2f,
-                    0f,
-                    0.5f + screenAspectRatio / bitmapAspectRatio / 2f,
-                    1f)
-        } else {
-            getViewport(id).set(
-                    0f,
-                    0.5f - bitmapAspectRatio / screenAspectRatio / 2f,
-                    1f,
-                    0.5f + bitmapAspectRatio / screenAspectRatio / 2f)
+        updateViewport(id) {
+            if (bitmapAspectRatio > screenAspectRatio) {
+                set(0.5f - screenAspectRatio / bitmapAspectRatio / 2f,
+                        0f,
+                        0.5f + screenAspectRatio / bitmapAspectRatio / 2f,
+                        1f)
+            } else {
+                set(0f,
+                        0.5f - bitmapAspectRatio / screenAspectRatio / 2f,
+                        1f,
+                        0.5f + bitmapAspectRatio / screenAspectRatio / 2f)
+            }
         }
         changeLiveData.postValue(false)
         return this
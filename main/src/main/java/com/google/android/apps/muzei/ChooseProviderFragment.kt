@@ -48,6 +48,7 @@ import androidx.core.view.isInvisible
 import androidx.core.view.isVisible
 import androidx.core.widget.toast
 import androidx.navigation.fragment.findNavController
+import com.google.android.apps.muzei.api.MuzeiContract
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.notifications.NotificationSettingsDialogFragment
@@ -239,6 +240,10 @@ class ChooseProviderFragment : Fragment() {
         private val providerDescription: TextView = itemView.findViewById(R.id.provider_description)
         private val providerSettings: Button = itemView.findViewById(R.id.provider_settings)
         private val providerBrowse: Button = itemView.findViewById(R.id.provider_browse)
+        // The artwork fills the width of a column at a 16:9 aspect ratio
+        private val thumbnailWidth = itemView.resources.run {
+            displayMetrics.widthPixels / getInteger(R.integer.choose_provider_span_count)
+        }
 
         private var isSelected = false
 
@@ -332,7 +337,8 @@ class ChooseProviderFragment : Fragment() {
             providerArtwork.isVisible = currentArtworkUri != null
             if (currentArtworkUri != null) {
                 Picasso.get()
-                        .load(currentArtworkUri)
+                        .load(MuzeiContract.Thumbnails.getContentUri(currentArtworkUri,
+                                thumbnailWidth, thumbnailWidth * 9 / 16))
                         .centerCrop()
                         .fit()
                         .into(providerArtwork, this@ProviderViewHolder)
@@ -25,6 +25,7 @@ import android.arch.lifecycle.LifecycleOwner
 import android.arch.lifecycle.LifecycleRegistry
 import android.arch.lifecycle.MutableLiveData
 import android.content.BroadcastReceiver
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
@@ -39,7 +40,7 @@ import android.view.SurfaceHolder
 import android.view.ViewConfiguration
 import com.google.android.apps.muzei.featuredart.FeaturedArtProvider
 import com.google.android.apps.muzei.notifications.NotificationUpdater
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.render.ArtworkBitmapCache
 import com.google.android.apps.muzei.render.MuzeiBlurRenderer
 import com.google.android.apps.muzei.render.RealRenderController
 import com.google.android.apps.muzei.render.RenderController
@@ -60,6 +61,8 @@ import kotlinx.coroutines.experimental.Job
 import kotlinx.coroutines.experimental.delay
 import kotlinx.coroutines.experimental.launch
 import net.rbgrn.android.glwallpaperservice.GLWallpaperService
+import java.io.FileDescriptor
+import java.io.PrintWriter
 
 data class WallpaperSize(val width: Int, val height: Int)
 
@@ -74,6 +77,7 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
 
     private val wallpaperLifecycle = LifecycleRegistry(this)
     private var unlockReceiver: BroadcastReceiver? = null
+    private val engines = mutableSetOf<MuzeiWallpaperEngine>()
 
     override fun onCreateEngine(): Engine {
         return MuzeiWallpaperEngine()
@@ -123,6 +127,23 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
         super.onDestroy()
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            ArtworkBitmapCache.evictAll()
+        }
+    }
+
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        super.dump(fd, writer, args)
+        synchronized(engines) {
+            engines.forEach { engine ->
+                writer.println("MuzeiBlurRenderer${if (engine.isPreview) " (preview)" else ""}:")
+                engine.renderer.renderStats.dump(writer, "  ")
+            }
+        }
+    }
+
     inner class MuzeiWallpaperEngine
         : GLWallpaperService.GLEngine(),
             LifecycleOwner,
@@ -131,7 +152,7 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
             MuzeiBlurRenderer.Callbacks,
             (Boolean) -> Unit {
 
-        private lateinit var renderer: MuzeiBlurRenderer
+        internal lateinit var renderer: MuzeiBlurRenderer
         private lateinit var renderController: RenderController
         private var currentArtwork: Bitmap? = null
 
@@ -182,7 +203,11 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
             setEGLContextClientVersion(2)
             setEGLConfigChooser(8, 8, 8, 0, 0, 0)
             setRenderer(renderer)
+            synchronized(engines) {
+                engines.add(this)
+            }
             renderMode = RENDERMODE_WHEN_DIRTY
+            preserveEGLContextOnPause = true
             requestRender()
 
             engineLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE)
@@ -226,9 +251,8 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
 
         @RequiresApi(Build.VERSION_CODES.O_MR1)
         private suspend fun updateCurrentArtwork(artwork: Artwork) {
-            currentArtwork = ImageLoader.decode(
-                    contentResolver, artwork.contentUri,
-                    MAX_ARTWORK_SIZE / 2) ?: return
+            currentArtwork = ArtworkBitmapCache.get(this@MuzeiWallpaperService,
+                    artwork, MAX_ARTWORK_SIZE / 2) ?: return
             notifyColorsChanged()
         }
 
@@ -243,11 +267,13 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
             if (!isPreview) {
                 WallpaperSizeLiveData.value = WallpaperSize(width, height)
             }
-            renderController.reloadCurrentArtwork()
         }
 
         override fun onDestroy() {
             ArtDetailViewport.removeObserver(this)
+            synchronized(engines) {
+                engines.remove(this)
+            }
             if (!isPreview) {
                 lifecycle.removeObserver(this)
             }
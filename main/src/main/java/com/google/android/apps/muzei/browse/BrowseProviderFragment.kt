@@ -33,6 +33,7 @@ import android.view.ViewGroup
 import android.widget.ImageView
 import androidx.core.widget.toast
 import androidx.navigation.fragment.findNavController
+import com.google.android.apps.muzei.api.MuzeiContract
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.util.observe
@@ -105,11 +106,16 @@ class BrowseProviderFragment: Fragment() {
 
     class ArtViewHolder(itemView: View): RecyclerView.ViewHolder(itemView) {
         private val imageView = itemView.findViewById<ImageView>(R.id.browse_image)
+        // Each item is a square filling one column of the grid
+        private val thumbnailSize = itemView.resources.run {
+            displayMetrics.widthPixels / getInteger(R.integer.browse_provider_span_count)
+        }
 
         fun bind(artwork: Artwork) {
             imageView.contentDescription = artwork.title
             Picasso.get()
-                    .load(artwork.imageUri)
+                    .load(MuzeiContract.Thumbnails.getContentUri(artwork.imageUri,
+                            thumbnailSize, thumbnailSize))
                     .centerCrop()
                     .fit()
                     .into(imageView)
@@ -24,6 +24,7 @@ import android.content.Context
 import android.content.Intent
 import android.content.res.Resources
 import android.os.Build
+import android.os.Process
 import android.preference.PreferenceManager
 import android.provider.Settings
 import android.support.annotation.RequiresApi
@@ -35,14 +36,22 @@ import android.util.Log
 import androidx.core.content.edit
 import com.google.android.apps.muzei.ArtDetailOpenLiveData
 import com.google.android.apps.muzei.ArtworkInfoRedirectActivity
-import com.google.android.apps.muzei.render.ContentUriImageLoader
+import com.google.android.apps.muzei.render.ArtworkBitmapCache
+import com.google.android.apps.muzei.render.RENDITION_CONFIG
+import com.google.android.apps.muzei.render.scaleToMinSize
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.getCommands
 import com.google.android.apps.muzei.room.sendAction
 import com.google.android.apps.muzei.sources.SourceManager
 import com.google.android.apps.muzei.sources.allowsNextArtwork
+import kotlinx.coroutines.experimental.asCoroutineDispatcher
 import kotlinx.coroutines.experimental.launch
+import kotlinx.coroutines.experimental.withContext
 import net.nurik.roman.muzei.R
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 class NewWallpaperNotificationReceiver : BroadcastReceiver() {
 
@@ -61,6 +70,25 @@ class NewWallpaperNotificationReceiver : BroadcastReceiver() {
 
         private const val EXTRA_USER_COMMAND = "com.google.android.apps.muzei.extra.USER_COMMAND"
 
+        private const val BIG_PICTURE_SIZE = 400
+
+        /**
+         * Single threaded coroutine context running at background priority, so that
+         * decoding the artwork for the notification doesn't compete with the wallpaper
+         * loading the same artwork
+         */
+        private val notificationContext by lazy {
+            ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, LinkedBlockingQueue<Runnable>(),
+                    ThreadFactory { runnable ->
+                        Thread({
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+                            runnable.run()
+                        }, "NewWallpaperNotification")
+                    }).apply {
+                allowCoreThreadTimeOut(true)
+            }.asCoroutineDispatcher()
+        }
+
         fun markNotificationRead(context: Context) = launch {
             val lastArtwork = MuzeiDatabase.getInstance(context).artworkDao()
                     .getCurrentArtwork()
@@ -106,7 +134,6 @@ class NewWallpaperNotificationReceiver : BroadcastReceiver() {
                 return
             }
 
-            val contentResolver = context.contentResolver
             val provider = MuzeiDatabase.getInstance(context)
                     .providerDao()
                     .getCurrentProvider()
@@ -126,9 +153,13 @@ class NewWallpaperNotificationReceiver : BroadcastReceiver() {
             }
             val largeIconHeight = context.resources
                     .getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-            val imageLoader = ContentUriImageLoader(contentResolver, artwork.contentUri)
-            val largeIcon = imageLoader.decode(largeIconHeight) ?: return
-            val bigPicture = imageLoader.decode(400) ?: return
+            // Decode the artwork once for the big picture and derive the large icon from it
+            val bigPicture = ArtworkBitmapCache.get(context, artwork, BIG_PICTURE_SIZE,
+                    config = RENDITION_CONFIG,
+                    decodeContext = notificationContext) ?: return
+            val largeIcon = withContext(notificationContext) {
+                bigPicture.scaleToMinSize(largeIconHeight)
+            }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 createNotificationChannel(context)
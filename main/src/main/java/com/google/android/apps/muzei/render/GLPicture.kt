@@ -21,7 +21,11 @@ import android.graphics.Bitmap
 import android.graphics.Rect
 import android.opengl.GLES20
 import com.google.android.apps.muzei.util.divideRoundUp
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.nio.FloatBuffer
+import java.nio.IntBuffer
+import java.nio.ShortBuffer
 
 internal fun Bitmap.toGLPicture(): GLPicture? {
     if (width == 0 || height == 0) {
@@ -30,6 +34,16 @@ internal fun Bitmap.toGLPicture(): GLPicture? {
     return GLPicture(this)
 }
 
+/**
+ * The staging buffers used to upload the tiles of [GLPicture]s on one GL thread
+ */
+private class TileStagingBuffers {
+    var tilePixels = IntArray(0)
+    var tileBuffer: IntBuffer = IntBuffer.allocate(0)
+    var tileRgb565Pixels = ShortArray(0)
+    var tileRgb565Buffer: ShortBuffer = ShortBuffer.allocate(0)
+}
+
 internal class GLPicture @SuppressLint("CheckResult") internal constructor(
         bitmap: Bitmap
 ) {
@@ -59,12 +73,15 @@ internal class GLPicture @SuppressLint("CheckResult") internal constructor(
 
         // number of coordinates per vertex in this array
         private const val COORDS_PER_VERTEX = 3
-        private const val VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT
         private const val VERTICES = 6 // TL, BL, BR, TL, BR, TR
 
         // S, T (or X, Y)
         private const val COORDS_PER_TEXTURE_VERTEX = 2
-        private const val TEXTURE_VERTEX_STRIDE_BYTES = COORDS_PER_TEXTURE_VERTEX * GLUtil.BYTES_PER_FLOAT
+
+        // Positions and texture coordinates are interleaved in a single vertex buffer
+        private const val FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COORDS_PER_TEXTURE_VERTEX
+        private const val VERTEX_STRIDE_BYTES = FLOATS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT
+        private const val TEXTURE_COORDS_OFFSET_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT
 
         private val SQUARE_TEXTURE_VERTICES = floatArrayOf(0f, 0f, // top left
                 0f, 1f, // bottom left
@@ -82,6 +99,14 @@ internal class GLPicture @SuppressLint("CheckResult") internal constructor(
         private var UNIFORM_MVP_MATRIX_HANDLE: Int = 0
 
         private var TILE_SIZE: Int = 0
+        private var MAX_TEXTURE_SIZE: Int = 0
+
+        // Staging buffers for uploading tiles, shared by all GLPictures of a GL thread.
+        // The wallpaper, its preview and the in-app view each render on their own GL
+        // thread, so every thread gets its own buffers.
+        private val stagingBuffers = object : ThreadLocal<TileStagingBuffers>() {
+            override fun initialValue() = TileStagingBuffers()
+        }
 
         fun initGl() {
             // Initialize shaders and create/link program
@@ -98,112 +123,217 @@ internal class GLPicture @SuppressLint("CheckResult") internal constructor(
             // Compute max texture size
             val maxTextureSize = IntArray(1)
             GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0)
-            TILE_SIZE = Math.min(512, maxTextureSize[0])
+            MAX_TEXTURE_SIZE = maxTextureSize[0]
+            TILE_SIZE = Math.min(512, MAX_TEXTURE_SIZE)
+        }
+
+        /**
+         * Sets up the program and the state shared by all pictures drawn with the given
+         * [mvpMatrix]. Must be followed by any number of calls to [draw] and then [endDraw].
+         */
+        fun beginDraw(mvpMatrix: FloatArray) {
+            // Add program to OpenGL ES environment
+            GLES20.glUseProgram(PROGRAM_HANDLE)
+
+            // Apply the projection and view transformation
+            GLES20.glUniformMatrix4fv(UNIFORM_MVP_MATRIX_HANDLE, 1, false, mvpMatrix, 0)
+            GLUtil.checkGlError("glUniformMatrix4fv")
+
+            // Set up texture stuff
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0)
+            GLES20.glUniform1i(UNIFORM_TEXTURE_HANDLE, 0)
+
+            GLES20.glEnableVertexAttribArray(ATTRIB_POSITION_HANDLE)
+            GLES20.glEnableVertexAttribArray(ATTRIB_TEXTURE_COORDS_HANDLE)
+        }
+
+        fun endDraw() {
+            GLES20.glDisableVertexAttribArray(ATTRIB_POSITION_HANDLE)
+            GLES20.glDisableVertexAttribArray(ATTRIB_TEXTURE_COORDS_HANDLE)
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0)
+        }
+
+        /**
+         * Uploads the given region of [bitmap] as a new texture, copying its pixels
+         * through the shared staging buffers rather than creating a sub-bitmap.
+         */
+        private fun loadTexture(bitmap: Bitmap, rect: Rect): Int {
+            val width = rect.width()
+            val height = rect.height()
+            val size = width * height
+            val buffers = stagingBuffers.get()
+            if (buffers.tilePixels.size < size) {
+                buffers.tilePixels = IntArray(TILE_SIZE * TILE_SIZE)
+                // Little endian so that each pixel is laid out in memory as R, G, B, A
+                buffers.tileBuffer = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 4)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asIntBuffer()
+            }
+            val pixels = buffers.tilePixels
+            bitmap.getPixels(pixels, 0, width, rect.left, rect.top, width, height)
+            if (bitmap.config == Bitmap.Config.RGB_565) {
+                return loadRgb565Texture(width, height, pixels, buffers)
+            }
+            for (i in 0 until size) {
+                // Convert from non-premultiplied ARGB to premultiplied ABGR, matching
+                // what GLUtils.texImage2D uploads for a Bitmap
+                val color = pixels[i]
+                val a = color ushr 24
+                var r = (color shr 16) and 0xff
+                var g = (color shr 8) and 0xff
+                var b = color and 0xff
+                if (a != 0xff) {
+                    r = r * a / 0xff
+                    g = g * a / 0xff
+                    b = b * a / 0xff
+                }
+                pixels[i] = (a shl 24) or (b shl 16) or (g shl 8) or r
+            }
+            val tileBuffer = buffers.tileBuffer
+            tileBuffer.clear()
+            tileBuffer.put(pixels, 0, size)
+            tileBuffer.position(0)
+            return GLUtil.loadTexture(width, height, tileBuffer)
         }
-    }
 
-    private val vertices = FloatArray(COORDS_PER_VERTEX * VERTICES)
-    private val vertexBuffer: FloatBuffer = GLUtil.newFloatBuffer(vertices.size)
-    private val textureCoordsBuffer: FloatBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES)
+        /**
+         * Uploads opaque ARGB [pixels] as a 16 bit RGB texture, keeping the memory savings
+         * of RGB_565 bitmaps on the GPU.
+         */
+        private fun loadRgb565Texture(
+                width: Int,
+                height: Int,
+                pixels: IntArray,
+                buffers: TileStagingBuffers
+        ): Int {
+            val size = width * height
+            if (buffers.tileRgb565Pixels.size < size) {
+                buffers.tileRgb565Pixels = ShortArray(TILE_SIZE * TILE_SIZE)
+                buffers.tileRgb565Buffer = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 2)
+                        .order(ByteOrder.nativeOrder())
+                        .asShortBuffer()
+            }
+            val rgb565Pixels = buffers.tileRgb565Pixels
+            for (i in 0 until size) {
+                val color = pixels[i]
+                rgb565Pixels[i] = (((color shr 8) and 0xf800) or
+                        ((color shr 5) and 0x07e0) or
+                        ((color shr 3) and 0x001f)).toShort()
+            }
+            val tileRgb565Buffer = buffers.tileRgb565Buffer
+            tileRgb565Buffer.clear()
+            tileRgb565Buffer.put(rgb565Pixels, 0, size)
+            tileRgb565Buffer.position(0)
+            return GLUtil.loadTexture(width, height, tileRgb565Buffer,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5)
+        }
+    }
 
     private val numColumns: Int
     private val numRows: Int
     private val width = bitmap.width
     private val height = bitmap.height
+    private val tileSize: Int
     private val textureHandles: IntArray
+    private val vertexBufferHandle: Int
 
     init {
-        val leftoverHeight = height % TILE_SIZE
+        if (width <= MAX_TEXTURE_SIZE && height <= MAX_TEXTURE_SIZE) {
+            // The whole bitmap fits in a single texture, so upload it directly
+            tileSize = Math.max(width, height)
+            numColumns = 1
+            numRows = 1
+            textureHandles = intArrayOf(GLUtil.loadTexture(bitmap))
+        } else {
+            tileSize = TILE_SIZE
+            val leftoverHeight = height % tileSize
 
-        // Load m x n textures
-        numColumns = width.divideRoundUp(TILE_SIZE)
-        numRows = height.divideRoundUp(TILE_SIZE)
+            // Load m x n textures
+            numColumns = width.divideRoundUp(tileSize)
+            numRows = height.divideRoundUp(tileSize)
 
-        textureHandles = IntArray(numColumns * numRows)
-        if (numColumns == 1 && numRows == 1) {
-            textureHandles[0] = GLUtil.loadTexture(bitmap)
-        } else {
+            textureHandles = IntArray(numColumns * numRows)
             val rect = Rect()
             for (y in 0 until numRows) {
                 for (x in 0 until numColumns) {
-                    rect.set(x * TILE_SIZE,
-                            (numRows - y - 1) * TILE_SIZE,
-                            (x + 1) * TILE_SIZE,
-                            (numRows - y) * TILE_SIZE)
+                    rect.set(x * tileSize,
+                            (numRows - y - 1) * tileSize,
+                            (x + 1) * tileSize,
+                            (numRows - y) * tileSize)
                     // The bottom tiles must be full tiles for drawing, so only allow edge tiles
                     // at the top
                     if (leftoverHeight > 0) {
-                        rect.offset(0, -TILE_SIZE + leftoverHeight)
+                        rect.offset(0, -tileSize + leftoverHeight)
                     }
                     rect.intersect(0, 0, width, height)
-                    val subBitmap = Bitmap.createBitmap(bitmap,
-                            rect.left, rect.top, rect.width(), rect.height())
-                    textureHandles[y * numColumns + x] = GLUtil.loadTexture(subBitmap)
-                    subBitmap.recycle()
+                    textureHandles[y * numColumns + x] = loadTexture(bitmap, rect)
                 }
             }
         }
     }
 
-    fun draw(mvpMatrix: FloatArray, alpha: Float) {
-        // Add program to OpenGL ES environment
-        GLES20.glUseProgram(PROGRAM_HANDLE)
-
-        // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(UNIFORM_MVP_MATRIX_HANDLE, 1, false, mvpMatrix, 0)
-        GLUtil.checkGlError("glUniformMatrix4fv")
+    init {
+        // Compute the geometry of every tile once, as it never changes
+        val vertices = FloatArray(textureHandles.size * VERTICES * FLOATS_PER_VERTEX)
+        for (y in 0 until numRows) {
+            for (x in 0 until numColumns) {
+                val left = Math.min(-1 + 2f * x.toFloat() * tileSize.toFloat() / width, 1f)
+                val top = Math.min(-1 + 2f * (y + 1).toFloat() * tileSize.toFloat() / height, 1f)
+                val right = Math.min(-1 + 2f * (x + 1).toFloat() * tileSize.toFloat() / width, 1f)
+                val bottom = Math.min(-1 + 2f * y.toFloat() * tileSize.toFloat() / height, 1f)
+                val tileOffset = (y * numColumns + x) * VERTICES * FLOATS_PER_VERTEX
+                for (v in 0 until VERTICES) {
+                    val s = SQUARE_TEXTURE_VERTICES[v * COORDS_PER_TEXTURE_VERTEX]
+                    val t = SQUARE_TEXTURE_VERTICES[v * COORDS_PER_TEXTURE_VERTEX + 1]
+                    val offset = tileOffset + v * FLOATS_PER_VERTEX
+                    vertices[offset] = if (s == 0f) left else right
+                    vertices[offset + 1] = if (t == 0f) top else bottom
+                    vertices[offset + 2] = 0f
+                    vertices[offset + 3] = s
+                    vertices[offset + 4] = t
+                }
+            }
+        }
+        val vertexBuffer: FloatBuffer = GLUtil.asFloatBuffer(vertices)
+        val bufferHandle = IntArray(1)
+        GLES20.glGenBuffers(1, bufferHandle, 0)
+        vertexBufferHandle = bufferHandle[0]
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferHandle)
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                vertices.size * GLUtil.BYTES_PER_FLOAT, vertexBuffer, GLES20.GL_STATIC_DRAW)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0)
+        GLUtil.checkGlError("glBufferData")
+    }
 
+    /**
+     * Draws this picture. Must be called between [beginDraw] and [endDraw].
+     */
+    fun draw(alpha: Float) {
         // Set up vertex buffer
-        GLES20.glEnableVertexAttribArray(ATTRIB_POSITION_HANDLE)
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferHandle)
         GLES20.glVertexAttribPointer(ATTRIB_POSITION_HANDLE,
                 COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-                VERTEX_STRIDE_BYTES, vertexBuffer)
-
-        // Set up texture stuff
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0)
-        GLES20.glUniform1i(UNIFORM_TEXTURE_HANDLE, 0)
+                VERTEX_STRIDE_BYTES, 0)
         GLES20.glVertexAttribPointer(ATTRIB_TEXTURE_COORDS_HANDLE,
                 COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
-                TEXTURE_VERTEX_STRIDE_BYTES, textureCoordsBuffer)
-        GLES20.glEnableVertexAttribArray(ATTRIB_TEXTURE_COORDS_HANDLE)
+                VERTEX_STRIDE_BYTES, TEXTURE_COORDS_OFFSET_BYTES)
 
         // Set the alpha
         GLES20.glUniform1f(UNIFORM_ALPHA_HANDLE, alpha)
 
         // Draw tiles
-        for (y in 0 until numRows) {
-            for (x in 0 until numColumns) {
-                // Pass in the vertex information
-                vertices[9] = Math.min(-1 + 2f * x.toFloat() * TILE_SIZE.toFloat() / width, 1f)
-                vertices[3] = vertices[9]
-                vertices[0] = vertices[3] // left
-                vertices[16] = Math.min(-1 + 2f * (y + 1).toFloat() * TILE_SIZE.toFloat() / height, 1f)
-                vertices[10] = vertices[16]
-                vertices[1] = vertices[10] // top
-                vertices[15] = Math.min(-1 + 2f * (x + 1).toFloat() * TILE_SIZE.toFloat() / width, 1f)
-                vertices[12] = vertices[15]
-                vertices[6] = vertices[12] // right
-                vertices[13] = Math.min(-1 + 2f * y.toFloat() * TILE_SIZE.toFloat() / height, 1f)
-                vertices[7] = vertices[13]
-                vertices[4] = vertices[7] // bottom
-                vertexBuffer.put(vertices)
-                vertexBuffer.position(0)
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-                        textureHandles[y * numColumns + x])
-                GLUtil.checkGlError("glBindTexture")
-
-                // Draw the two triangles
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertices.size / COORDS_PER_VERTEX)
-            }
-        }
+        for (tile in textureHandles.indices) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandles[tile])
+            GLUtil.checkGlError("glBindTexture")
 
-        GLES20.glDisableVertexAttribArray(ATTRIB_POSITION_HANDLE)
-        GLES20.glDisableVertexAttribArray(ATTRIB_TEXTURE_COORDS_HANDLE)
+            // Draw the two triangles
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, tile * VERTICES, VERTICES)
+        }
     }
 
     fun destroy() {
         GLES20.glDeleteTextures(textureHandles.size, textureHandles, 0)
+        GLES20.glDeleteBuffers(1, intArrayOf(vertexBufferHandle), 0)
         GLUtil.checkGlError("Destroy picture")
     }
 }
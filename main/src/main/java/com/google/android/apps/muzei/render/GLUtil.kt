@@ -23,6 +23,7 @@ import android.util.Log
 
 import net.nurik.roman.muzei.BuildConfig
 
+import java.nio.Buffer
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
@@ -66,7 +67,34 @@ object GLUtil {
         return programHandle
     }
 
-    fun loadTexture(bitmap: Bitmap): Int {
+    fun loadTexture(bitmap: Bitmap): Int = generateTexture {
+        // Load the bitmap into the bound texture.
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0)
+        GLUtil.checkGlError("texImage2D")
+    }
+
+    /**
+     * Loads a texture from [pixels], tightly packed in rows of [width] pixels. By default,
+     * these are 8 bit RGBA pixels. Pass [GLES20.GL_RGB] and
+     * [GLES20.GL_UNSIGNED_SHORT_5_6_5] for 16 bit RGB pixels.
+     */
+    fun loadTexture(
+            width: Int,
+            height: Int,
+            pixels: Buffer,
+            format: Int = GLES20.GL_RGBA,
+            type: Int = GLES20.GL_UNSIGNED_BYTE
+    ): Int = generateTexture {
+        // Rows of 16 bit pixels are only guaranteed to be 2 byte aligned
+        val alignment = if (type == GLES20.GL_UNSIGNED_BYTE) 4 else 2
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment)
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, type, pixels)
+        GLUtil.checkGlError("glTexImage2D")
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4)
+    }
+
+    private inline fun generateTexture(upload: () -> Unit): Int {
         val textureHandle = IntArray(1)
 
         GLES20.glGenTextures(1, textureHandle, 0)
@@ -86,9 +114,7 @@ object GLUtil {
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                     GLES20.GL_LINEAR)
 
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0)
-            GLUtil.checkGlError("texImage2D")
+            upload()
         }
 
         if (textureHandle[0] == 0) {
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+/**
+ * A disk cache of the keyframes produced by [MuzeiBlurRenderer], stored as raw pixels so
+ * that they can be read back through a memory-mapped file without decoding or blurring.
+ *
+ * Each entry is a single file, written to a temporary file and then renamed into place so
+ * that readers never see partial entries. The cache is trimmed to [MAX_SIZE_BYTES] by
+ * evicting the least recently used entries.
+ */
+internal class KeyframeCache(context: Context) {
+
+    companion object {
+        private const val TAG = "KeyframeCache"
+        private const val CACHE_DIRECTORY = "keyframes"
+        private const val MAX_SIZE_BYTES = 48L * 1024 * 1024
+
+        private const val MAGIC = 0x4d5a4b46 // MZKF
+        private const val VERSION = 3
+    }
+
+    /**
+     * The cached output of a single load: either the sharp keyframe or the blurred
+     * keyframes of one set of effects. Like the decoded artwork, they are stored without
+     * their EXIF rotation applied.
+     */
+    class Keyframes(val bitmaps: List<Bitmap>)
+
+    private val directory = File(context.cacheDir, CACHE_DIRECTORY)
+
+    private fun fileFor(key: String): File {
+        val digest = MessageDigest.getInstance("SHA-1")
+                .digest(key.toByteArray(Charsets.UTF_8))
+        return File(directory, digest.joinToString("") {
+            String.format("%02x", it)
+        })
+    }
+
+    /**
+     * Returns the keyframes stored under [key], or null if there are none.
+     */
+    fun get(key: String): Keyframes? {
+        val file = fileFor(key)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            RandomAccessFile(file, "r").use { randomAccessFile ->
+                val buffer = randomAccessFile.channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length())
+                if (buffer.int != MAGIC || buffer.int != VERSION) {
+                    file.delete()
+                    return null
+                }
+                val keyBytes = ByteArray(buffer.int)
+                buffer.get(keyBytes)
+                if (String(keyBytes, Charsets.UTF_8) != key) {
+                    // Hash collision
+                    return null
+                }
+                val count = buffer.int
+                val configs = Bitmap.Config.values()
+                val bitmaps = ArrayList<Bitmap>(count)
+                repeat(count) {
+                    val width = buffer.int
+                    val height = buffer.int
+                    val config = configs[buffer.int]
+                    val end = buffer.position() + buffer.int
+                    bitmaps += Bitmap.createBitmap(width, height, config).apply {
+                        buffer.limit(end)
+                        copyPixelsFromBuffer(buffer)
+                        buffer.limit(buffer.capacity())
+                        buffer.position(end)
+                    }
+                }
+                file.setLastModified(System.currentTimeMillis())
+                Keyframes(bitmaps)
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Error reading cached keyframes for $key", e)
+            file.delete()
+            null
+        }
+    }
+
+    /**
+     * Stores the given [keyframes] under [key]. This does disk I/O and should not be
+     * called on the GL thread.
+     */
+    fun put(key: String, keyframes: Keyframes) {
+        var tempFile: File? = null
+        try {
+            directory.mkdirs()
+            val keyBytes = key.toByteArray(Charsets.UTF_8)
+            // MAGIC, VERSION, key length, key, count
+            var size = 4L + 4 + 4 + keyBytes.size + 4
+            keyframes.bitmaps.forEach { bitmap ->
+                // width, height, config, byte count, pixels
+                size += 4 + 4 + 4 + 4 + bitmap.byteCount
+            }
+            tempFile = File.createTempFile(CACHE_DIRECTORY, null, directory)
+            RandomAccessFile(tempFile, "rw").use { randomAccessFile ->
+                val buffer = randomAccessFile.channel.map(
+                        FileChannel.MapMode.READ_WRITE, 0, size)
+                buffer.putInt(MAGIC)
+                buffer.putInt(VERSION)
+                buffer.putInt(keyBytes.size)
+                buffer.put(keyBytes)
+                buffer.putInt(keyframes.bitmaps.size)
+                keyframes.bitmaps.forEach { bitmap ->
+                    buffer.putInt(bitmap.width)
+                    buffer.putInt(bitmap.height)
+                    buffer.putInt(bitmap.config.ordinal)
+                    buffer.putInt(bitmap.byteCount)
+                    bitmap.copyPixelsToBuffer(buffer)
+                }
+            }
+            // There's no need to force the mapped pages to disk: the rename only happens
+            // once the entry is complete, so readers never see a torn entry.
+            if (!tempFile.renameTo(fileFor(key))) {
+                throw IOException("Unable to rename $tempFile")
+            }
+            tempFile = null
+            trim()
+        } catch (e: Exception) {
+            Log.w(TAG, "Error caching keyframes for $key", e)
+        } finally {
+            tempFile?.delete()
+        }
+    }
+
+    private fun trim() {
+        val files = directory.listFiles()?.sortedByDescending { it.lastModified() } ?: return
+        var totalSize = 0L
+        files.forEachIndexed { index, file ->
+            totalSize += file.length()
+            // Always keep the most recent entry
+            if (totalSize > MAX_SIZE_BYTES && index > 0) {
+                file.delete()
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.graphics.RectF
 import android.opengl.GLES20
 import android.opengl.GLSurfaceView
 import android.opengl.Matrix
+import android.os.CancellationSignal
 import android.support.annotation.Keep
 import android.util.Log
 import android.view.animation.AccelerateDecelerateInterpolator
@@ -37,6 +38,11 @@ import com.google.android.apps.muzei.util.floorEven
 import com.google.android.apps.muzei.util.interpolate
 import com.google.android.apps.muzei.util.roundMult4
 import com.google.android.apps.muzei.util.uninterpolate
+import com.google.firebase.perf.metrics.Trace as PerfTrace
+import kotlinx.coroutines.experimental.Job
+import kotlinx.coroutines.experimental.launch
+import net.nurik.roman.muzei.BuildConfig
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.microedition.khronos.egl.EGLConfig
 import javax.microedition.khronos.opengles.GL10
 
@@ -62,6 +68,11 @@ class MuzeiBlurRenderer(
 
         private const val CROSSFADE_ANIMATION_DURATION = 750
         private const val BLUR_ANIMATION_DURATION = 750
+        private const val LOCK_SCREEN_ANIMATION_DURATION = 500
+        private const val PLACEHOLDER_ANIMATION_DURATION = 250
+
+        // Size of the placeholder shown while the keyframes are loading
+        private const val PLACEHOLDER_SIZE = 64
 
         const val DEFAULT_BLUR = 250 // max 500
         const val DEFAULT_GREY = 0 // max 500
@@ -70,13 +81,20 @@ class MuzeiBlurRenderer(
         private const val DEMO_DIM = 64
         private const val DEMO_GREY = 0
         private const val DIM_RANGE = 0.5f // percent of max dim
+
+        // Minimum memory class (in MB) needed to keep lock screen keyframes loaded
+        // alongside the home screen keyframes
+        private const val LOCK_SCREEN_KEYFRAMES_MIN_MEMORY_CLASS = 128
     }
 
+    private val memoryClass: Int
+    private val isLowRamDevice: Boolean
     private val blurKeyframes: Int
-    private var maxPrescaledBlurPixels: Int = 0
-    private var blurredSampleSize: Int = 0
-    private var maxDim: Int = 0
-    private var maxGrey: Int = 0
+    private val keepLockScreenKeyframes: Boolean
+    private val homeEffects = Effects(Prefs.PREF_BLUR_AMOUNT,
+            Prefs.PREF_DIM_AMOUNT, Prefs.PREF_GREY_AMOUNT)
+    private val lockScreenEffects = Effects(Prefs.PREF_LOCK_BLUR_AMOUNT,
+            Prefs.PREF_LOCK_DIM_AMOUNT, Prefs.PREF_LOCK_GREY_AMOUNT)
 
     // Model and view matrices. Projection and MVP stored in picture set
     private val modelMatrix = FloatArray(16)
@@ -84,32 +102,52 @@ class MuzeiBlurRenderer(
 
     private var aspectRatio: Float = 0f
     private var currentHeight: Int = 0
+    // The size of the surface as of the last onSurfaceChanged
+    private var surfaceWidth: Int = 0
+    private var surfaceHeight: Int = 0
 
     private var currentGLPictureSet: GLPictureSet
     private var nextGLPictureSet: GLPictureSet
     private lateinit var colorOverlay: GLColorOverlay
 
     private var queuedNextImageLoader: ImageLoader? = null
+    // The most recent artwork, reloaded if the EGL context is lost along with its textures
+    private var lastImageLoader: ImageLoader? = null
+    private val keyframeCache = KeyframeCache(context)
+    internal val renderStats = RenderStats(
+            BuildConfig.REPORT_LOAD_TRACES && !demoMode && !preview)
 
     private var surfaceCreated: Boolean = false
 
     @Volatile
     private var normalOffsetX: Float = 0f
+    // Set when normalOffsetX changes, so that the transform matrices are recomputed
+    // once on the GL thread before the next frame, however many offsets arrived
+    private val viewportChanged = AtomicBoolean(false)
     private val currentViewport = RectF() // [-1, -1] to [1, 1], flipped
+    private val artDetailViewport = RectF()
 
     var isBlurred = true
         private set
-    var blurPreferenceName = Prefs.PREF_BLUR_AMOUNT
-    var dimPreferenceName = Prefs.PREF_DIM_AMOUNT
-    var greyPreferenceName = Prefs.PREF_GREY_AMOUNT
+    /**
+     * Whether the lock screen effects are shown. Set through [setOnLockScreen].
+     */
+    var isOnLockScreen = false
+        private set
     private var blurRelatedToArtDetailMode = false
     private val blurInterpolator = AccelerateDecelerateInterpolator()
     private val blurAnimator = TickingFloatAnimator(BLUR_ANIMATION_DURATION * if (demoMode) 5 else 1)
     private val crossfadeAnimator = TickingFloatAnimator(CROSSFADE_ANIMATION_DURATION)
+    // 0 when showing the home screen effects, 1 when showing the lock screen effects
+    private val lockScreenAnimator = TickingFloatAnimator(LOCK_SCREEN_ANIMATION_DURATION)
 
     init {
         val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
-        blurKeyframes = if (activityManager.isLowRamDevice) 1 else 2
+        memoryClass = activityManager.memoryClass
+        isLowRamDevice = activityManager.isLowRamDevice
+        blurKeyframes = DecodePlanner.blurKeyframes(memoryClass, isLowRamDevice)
+        keepLockScreenKeyframes = !demoMode && !isLowRamDevice &&
+                memoryClass >= LOCK_SCREEN_KEYFRAMES_MIN_MEMORY_CLASS
         blurAnimator.currentValue = blurKeyframes.toFloat()
 
         currentGLPictureSet = GLPictureSet(0)
@@ -120,46 +158,118 @@ class MuzeiBlurRenderer(
         recomputeGreyAmount()
     }
 
-    fun recomputeMaxPrescaledBlurPixels(
-            newBlurPreferenceName: String = blurPreferenceName
+    /**
+     * Freshly created keyframe [bitmaps] that should be written to the [keyframeCache]
+     * under [key] once they have been uploaded.
+     */
+    private class PendingCacheWrite(val key: String, val bitmaps: List<Bitmap>)
+
+    /**
+     * The blur, dim and grey settings read from one set of preferences.
+     */
+    private inner class Effects(
+            private val blurPreferenceName: String,
+            private val dimPreferenceName: String,
+            private val greyPreferenceName: String
     ) {
-        blurPreferenceName = newBlurPreferenceName
-        // Compute blur sizes
-        val blurAmount = if (demoMode)
-            DEMO_BLUR
-        else
-            Prefs.getSharedPreferences(context)
-                    .getInt(blurPreferenceName, DEFAULT_BLUR)
-        val maxBlurRadiusOverScreenHeight = blurAmount * 0.0001f
-        val dm = context.resources.displayMetrics
-        val maxBlurPx = (dm.heightPixels * maxBlurRadiusOverScreenHeight).toInt()
-        blurredSampleSize = 4
-        while (maxBlurPx / blurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
-            blurredSampleSize = blurredSampleSize shl 1
-        }
-        maxPrescaledBlurPixels = maxBlurPx / blurredSampleSize
+        var maxPrescaledBlurPixels: Int = 0
+        var blurredSampleSize: Int = 0
+        var maxDim: Int = 0
+        var maxGrey: Int = 0
+
+        /**
+         * Whether the blurred keyframes are identical to the sharp keyframe
+         */
+        val isSharp
+            get() = maxPrescaledBlurPixels == 0 && maxGrey == 0
+
+        /**
+         * A key identifying the blurred keyframes produced with these settings
+         */
+        val cacheKey
+            get() = "$maxPrescaledBlurPixels/$blurredSampleSize:$maxGrey:$blurKeyframes"
+
+        fun recomputeMaxPrescaledBlurPixels() {
+            // Compute blur sizes
+            val blurAmount = if (demoMode)
+                DEMO_BLUR
+            else
+                Prefs.getSharedPreferences(context)
+                        .getInt(blurPreferenceName, DEFAULT_BLUR)
+            val maxBlurRadiusOverScreenHeight = blurAmount * 0.0001f
+            val dm = context.resources.displayMetrics
+            val maxBlurPx = (dm.heightPixels * maxBlurRadiusOverScreenHeight).toInt()
+            blurredSampleSize = 4
+            while (maxBlurPx / blurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
+                blurredSampleSize = blurredSampleSize shl 1
+            }
+            maxPrescaledBlurPixels = maxBlurPx / blurredSampleSize
+        }
+
+        fun recomputeMaxDimAmount() {
+            maxDim = Prefs.getSharedPreferences(context).getInt(
+                    dimPreferenceName, DEFAULT_MAX_DIM)
+        }
+
+        fun recomputeGreyAmount() {
+            maxGrey = if (demoMode)
+                DEMO_GREY
+            else
+                Prefs.getSharedPreferences(context)
+                        .getInt(greyPreferenceName, DEFAULT_GREY)
+        }
+
+        fun blurRadiusAtFrame(f: Float): Float {
+            return maxPrescaledBlurPixels * blurInterpolator.getInterpolation(f / blurKeyframes)
+        }
     }
 
-    fun recomputeMaxDimAmount(
-            newDimPreferenceName: String = dimPreferenceName
-    ) {
-        dimPreferenceName = newDimPreferenceName
-        maxDim = Prefs.getSharedPreferences(context).getInt(
-                dimPreferenceName, DEFAULT_MAX_DIM)
+    fun recomputeMaxPrescaledBlurPixels() {
+        homeEffects.recomputeMaxPrescaledBlurPixels()
+        lockScreenEffects.recomputeMaxPrescaledBlurPixels()
     }
 
-    fun recomputeGreyAmount(
-            newGreyPreferenceName: String = greyPreferenceName
-    ) {
-        greyPreferenceName = newGreyPreferenceName
-        maxGrey = if (demoMode)
-            DEMO_GREY
-        else
-            Prefs.getSharedPreferences(context)
-                    .getInt(greyPreferenceName, DEFAULT_GREY)
+    fun recomputeMaxDimAmount() {
+        homeEffects.recomputeMaxDimAmount()
+        lockScreenEffects.recomputeMaxDimAmount()
+    }
+
+    fun recomputeGreyAmount() {
+        homeEffects.recomputeGreyAmount()
+        lockScreenEffects.recomputeGreyAmount()
+    }
+
+    /**
+     * Switches between the home screen and lock screen effects. When both sets of
+     * keyframes are loaded, this crossfades between them and returns true. Otherwise,
+     * it returns false and the current artwork needs to be reloaded.
+     */
+    fun setOnLockScreen(onLockScreen: Boolean): Boolean {
+        if (isOnLockScreen == onLockScreen) {
+            return true
+        }
+        isOnLockScreen = onLockScreen
+        val target = if (onLockScreen) 1 else 0
+        if (surfaceCreated && currentGLPictureSet.hasKeyframesFor(onLockScreen)) {
+            lockScreenAnimator.start(endValue = target) {}
+            callbacks.requestRender()
+            return true
+        }
+        lockScreenAnimator.currentValue = target.toFloat()
+        return false
     }
 
     override fun onSurfaceCreated(unused: GL10, config: EGLConfig) {
+        // This is only called when a new EGL context is created, so if there was a
+        // previous context, all of its textures are gone and must be reloaded
+        if (surfaceCreated) {
+            Log.d(TAG, "EGL context lost, reloading artwork")
+            currentGLPictureSet.cancelLoad()
+            nextGLPictureSet.cancelLoad()
+            currentGLPictureSet = GLPictureSet(currentGLPictureSet.id)
+            nextGLPictureSet = GLPictureSet(nextGLPictureSet.id)
+            queuedNextImageLoader = queuedNextImageLoader ?: lastImageLoader
+        }
         surfaceCreated = false
         GLES20.glEnable(GLES20.GL_BLEND)
         //        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
@@ -178,12 +288,9 @@ class MuzeiBlurRenderer(
 
         colorOverlay = GLColorOverlay()
 
+        // Any queued artwork is loaded by the onSurfaceChanged that always follows,
+        // once the size of the surface is known
         surfaceCreated = true
-        val loader = queuedNextImageLoader
-        if (loader != null) {
-            queuedNextImageLoader = null
-            setAndConsumeImageLoader(loader)
-        }
     }
 
     override fun onSurfaceChanged(unused: GL10, width: Int, height: Int) {
@@ -197,6 +304,24 @@ class MuzeiBlurRenderer(
         currentGLPictureSet.recomputeTransformMatrices()
         nextGLPictureSet.recomputeTransformMatrices()
         recomputeMaxPrescaledBlurPixels()
+        val sizeChanged = width != surfaceWidth || height != surfaceHeight
+        surfaceWidth = width
+        surfaceHeight = height
+        val queuedLoader = queuedNextImageLoader
+        if (queuedLoader != null) {
+            queuedNextImageLoader = null
+            setAndConsumeImageLoader(queuedLoader)
+            return
+        }
+        // Reload the artwork at the new surface size, but only if its keyframes can come
+        // from the keyframe cache: artwork without a cache key would be decoded again
+        // in full and is scaled well enough by GL instead. Artwork being crossfaded to
+        // keeps loading at the size it started with.
+        val loader = lastImageLoader
+        if (sizeChanged && loader != null && sharpCacheKey(loader) != null &&
+                !crossfadeAnimator.isRunning) {
+            setAndConsumeImageLoader(loader)
+        }
     }
 
     fun hintViewportSize(width: Int, height: Int) {
@@ -205,23 +330,27 @@ class MuzeiBlurRenderer(
     }
 
     override fun onDrawFrame(unused: GL10) {
+        val frameStartNanos = renderStats.beginFrame()
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
 
         Matrix.setIdentityM(modelMatrix, 0)
 
-        val stillAnimating = crossfadeAnimator.tick() or blurAnimator.tick()
+        val stillAnimating = crossfadeAnimator.tick() or blurAnimator.tick() or
+                lockScreenAnimator.tick() or currentGLPictureSet.tickPlaceholder() or
+                nextGLPictureSet.tickPlaceholder()
 
-        if (blurRelatedToArtDetailMode) {
+        if (viewportChanged.getAndSet(false) || blurRelatedToArtDetailMode) {
             currentGLPictureSet.recomputeTransformMatrices()
             nextGLPictureSet.recomputeTransformMatrices()
         }
 
-        var dimAmount = currentGLPictureSet.dimAmount.toFloat()
-        currentGLPictureSet.drawFrame(1f)
+        val lockScreenAmount = lockScreenAnimator.currentValue
+        var dimAmount = currentGLPictureSet.dimAmount(lockScreenAmount)
+        currentGLPictureSet.drawFrame(1f, lockScreenAmount)
         if (crossfadeAnimator.isRunning) {
-            dimAmount = interpolate(dimAmount, nextGLPictureSet.dimAmount.toFloat(),
+            dimAmount = interpolate(dimAmount, nextGLPictureSet.dimAmount(lockScreenAmount),
                     crossfadeAnimator.currentValue)
-            nextGLPictureSet.drawFrame(crossfadeAnimator.currentValue)
+            nextGLPictureSet.drawFrame(crossfadeAnimator.currentValue, lockScreenAmount)
         }
 
         colorOverlay.color = Color.argb((dimAmount * blurAnimator.currentValue / blurKeyframes).toInt(), 0, 0, 0)
@@ -230,24 +359,56 @@ class MuzeiBlurRenderer(
         if (stillAnimating) {
             callbacks.requestRender()
         }
+        renderStats.endFrame(frameStartNanos, stillAnimating)
     }
 
+    /**
+     * Sets the horizontal offset of the wallpaper. This can be called from any thread and
+     * as often as offsets arrive: the transform matrices are only recomputed on the GL
+     * thread, once per frame.
+     */
     @Keep
     fun setNormalOffsetX(x: Float) {
         normalOffsetX = x.constrain(0f, 1f)
-        onViewportChanged()
-    }
-
-    private fun onViewportChanged() {
-        currentGLPictureSet.recomputeTransformMatrices()
-        nextGLPictureSet.recomputeTransformMatrices()
-        if (surfaceCreated) {
+        // Only the first offset since the last frame needs to request a new frame
+        if (!viewportChanged.getAndSet(true) && surfaceCreated) {
             callbacks.requestRender()
         }
     }
 
-    private fun blurRadiusAtFrame(f: Float): Float {
-        return maxPrescaledBlurPixels * blurInterpolator.getInterpolation(f / blurKeyframes)
+    /**
+     * Whether to keep the sharp keyframe of the current artwork in memory so that changes
+     * to the blur, dim and grey amounts can be applied by [reapplyEffects] without
+     * reloading the artwork. This should only be enabled while those settings are being
+     * changed. Enabling it loads the sharp keyframe again in the background if it was
+     * already released.
+     */
+    var retainBlurSource = false
+        set(value) {
+            field = value
+            if (value) {
+                currentGLPictureSet.retainBlurSource()
+            } else {
+                currentGLPictureSet.releaseBlurSource()
+                nextGLPictureSet.releaseBlurSource()
+            }
+        }
+
+    /**
+     * Applies the current blur, dim and grey amounts to the current artwork, re-blurring
+     * only if [reblur] is true. The blur is redone in the background and only the upload
+     * of the new keyframes happens on the GL thread. Returns false if the artwork must be
+     * reloaded instead.
+     */
+    fun reapplyEffects(reblur: Boolean = true): Boolean {
+        if (!surfaceCreated || crossfadeAnimator.isRunning) {
+            return false
+        }
+        if (!currentGLPictureSet.reapplyEffects(reblur)) {
+            return false
+        }
+        callbacks.requestRender()
+        return true
     }
 
     fun setAndConsumeImageLoader(imageLoader: ImageLoader) {
@@ -257,11 +418,29 @@ class MuzeiBlurRenderer(
         }
 
         if (crossfadeAnimator.isRunning) {
+            if (nextGLPictureSet.isLoadedFrom(imageLoader)) {
+                // Already crossfading to this artwork
+                queuedNextImageLoader = null
+                return
+            }
+            // Only the last of a burst of artwork changes needs to be loaded, so stop
+            // loading the artwork being crossfaded to, keeping its placeholder
             queuedNextImageLoader = imageLoader
+            nextGLPictureSet.cancelLoad()
+            return
+        }
+
+        if (currentGLPictureSet.isLoadedFrom(imageLoader)) {
+            // The textures survived (e.g., the EGL context was preserved while the surface
+            // was recreated), so only the dim amounts need to be brought up to date
+            currentGLPictureSet.updateDimAmounts()
+            callbacks.requestRender()
             return
         }
 
-        val (width, height) = imageLoader.getSize()
+        val (width, height) = renderStats.measure(RenderStats.Stage.BOUNDS) {
+            imageLoader.getSize()
+        }
         if (width == 0 || height == 0) {
             return
         }
@@ -274,7 +453,10 @@ class MuzeiBlurRenderer(
                     aspectRatio)
         }
 
-        nextGLPictureSet.load(imageLoader)
+        // The current artwork is about to be replaced, so there's no need to finish loading it
+        currentGLPictureSet.cancelLoad()
+        lastImageLoader = imageLoader
+        nextGLPictureSet.load(imageLoader, width, height)
 
         crossfadeAnimator.start(0, 1) {
             // swap current and next picturesets
@@ -299,106 +481,395 @@ class MuzeiBlurRenderer(
     private inner class GLPictureSet internal constructor(internal val id: Int) {
         private val projectionMatrix = FloatArray(16)
         private val mvpMatrix = FloatArray(16)
-        private val pictures = arrayOfNulls<GLPicture>(blurKeyframes + 1)
+        // Rotates the pictures upright, as their bitmaps are stored without EXIF rotation
+        private val rotationMatrix = FloatArray(16).apply {
+            Matrix.setIdentityM(this, 0)
+        }
+        private var sharpPicture: GLPicture? = null
+        private val homeKeyframes = Keyframes(homeEffects)
+        private val lockScreenKeyframes = Keyframes(lockScreenEffects)
         private var hasBitmap = false
         private var bitmapAspectRatio = 1f
-        internal var dimAmount = 0
+        private var darkness = 0f
+        private var rotation = 0
+        // The sharp keyframe, kept while retainBlurSource is enabled
+        private var blurSource: Bitmap? = null
+        // The background reload of the blurSource, if it was released before being needed
+        private var blurSourceJob: Job? = null
+        private var blurSourceCancellationSignal: CancellationSignal? = null
+        // Whether to reblur once the blurSource has been reloaded
+        private var reblurPending = false
+        // The background re-blur of the keyframes for changed effects
+        private var reblurJob: Job? = null
+        private var reblurCancellationSignal: CancellationSignal? = null
+        // The artwork and decode plan of the last load, to reload the blurSource
+        private var imageLoader: ImageLoader? = null
+        private var plan: DecodePlan? = null
+        // A tiny copy of the artwork shown until the keyframes are loaded
+        private var placeholderPicture: GLPicture? = null
+        // 1 while the placeholder is shown, animating to 0 once the keyframes are loaded
+        private val placeholderAnimator = TickingFloatAnimator(PLACEHOLDER_ANIMATION_DURATION)
+        // The background decoding and blurring of the keyframes
+        private var loadJob: Job? = null
+        private var loadCancellationSignal: CancellationSignal? = null
+        private var loadGeneration = 0
+        // The Firebase Performance trace of the background load, if it's reported
+        private var loadTrace: PerfTrace? = null
+        // Identifies the artwork and surface height the sharp keyframe is loaded for
+        private var sharpCacheKey: String? = null
+
+        /**
+         * The keyframes of this picture set for one set of [Effects]. The first keyframe
+         * is always the sharp keyframe, shared between the home and lock screen.
+         */
+        private inner class Keyframes(val effects: Effects) {
+            val pictures = arrayOfNulls<GLPicture>(blurKeyframes + 1)
+            var dimAmount = DEFAULT_MAX_DIM
+            var loaded = false
+            // The Effects.cacheKey these keyframes were (or are being) created with
+            var effectsCacheKey: String? = null
+            // The keyframes these pictures are borrowed from, if the effects are identical
+            private var sharedWith: Keyframes? = null
+
+            fun updateDimAmount() {
+                dimAmount = if (demoMode)
+                    DEMO_DIM
+                else
+                    (effects.maxDim * (1 - DIM_RANGE + DIM_RANGE * Math.sqrt(darkness.toDouble()))).toInt()
+            }
+
+            /**
+             * Whether these keyframes would be identical to the [other] keyframes
+             */
+            fun canShareWith(other: Keyframes) = other.effects.cacheKey == effects.cacheKey
+
+            /**
+             * Creates the blurred keyframe bitmaps from the [sharpBitmap], either loading
+             * them from the [keyframeCache] or blurring it. Freshly blurred bitmaps are
+             * added to [cacheWrites] to be cached under [cacheKey] once uploaded. This
+             * doesn't touch any GL state, so it can be called off the GL thread.
+             */
+            fun createBitmaps(
+                    sharpBitmap: Bitmap,
+                    cacheKey: String?,
+                    rotation: Int,
+                    cancellationSignal: CancellationSignal? = null,
+                    loadTrace: PerfTrace? = null,
+                    cacheWrites: MutableList<PendingCacheWrite>? = null
+            ): List<Bitmap> {
+                if (effects.isSharp) {
+                    return emptyList()
+                }
+                val cachedKeyframes = cacheKey?.let { key ->
+                    renderStats.measure(RenderStats.Stage.CACHE_READ, loadTrace) {
+                        keyframeCache.get(key)
+                    }
+                }
+                if (cachedKeyframes != null && cachedKeyframes.bitmaps.size == blurKeyframes) {
+                    return cachedKeyframes.bitmaps
+                }
+                val blurredBitmaps = createBlurKeyframes(sharpBitmap, rotation,
+                        cancellationSignal, loadTrace)
+                if (cancellationSignal?.isCanceled == true) {
+                    blurredBitmaps.forEach { it.recycle() }
+                    return emptyList()
+                }
+                if (cacheKey != null && cacheWrites != null &&
+                        blurredBitmaps.size == blurKeyframes) {
+                    cacheWrites += PendingCacheWrite(cacheKey, blurredBitmaps)
+                }
+                return blurredBitmaps
+            }
+
+            /**
+             * Uploads the [blurredBitmaps] created by [createBitmaps] on the GL thread,
+             * recycling them unless they still need to be written to the [keyframeCache],
+             * or borrows the pictures of the [other] keyframes if they are identical.
+             */
+            fun upload(
+                    blurredBitmaps: List<Bitmap>,
+                    other: Keyframes,
+                    recycleBitmaps: Boolean = true
+            ) {
+                loaded = true
+                updateDimAmount()
+                pictures[0] = sharpPicture
+                if (sharpPicture == null) {
+                    if (recycleBitmaps) {
+                        blurredBitmaps.forEach { it.recycle() }
+                    }
+                    return
+                }
+                if (effects.isSharp) {
+                    for (f in 1..blurKeyframes) {
+                        pictures[f] = sharpPicture
+                    }
+                    return
+                }
+                if (blurredBitmaps.isEmpty() && other.loaded && canShareWith(other)) {
+                    sharedWith = other
+                    System.arraycopy(other.pictures, 0, pictures, 0, pictures.size)
+                    return
+                }
+                blurredBitmaps.forEachIndexed { index, bitmap ->
+                    pictures[index + 1] = bitmap.toGLPicture()
+                    if (recycleBitmaps) {
+                        bitmap.recycle()
+                    }
+                }
+            }
+
+            private fun blurredHeight(): Int {
+                val sampleSizeTargetHeight: Int = if (effects.maxPrescaledBlurPixels > 0) {
+                    currentHeight / effects.blurredSampleSize
+                } else {
+                    currentHeight
+                }
+                // Note that image width should be a multiple of 4 to avoid
+                // issues with RenderScript allocations.
+                return Math.max(2, sampleSizeTargetHeight.floorEven())
+            }
+
+            /**
+             * Creates the blurred keyframes from [sourceBitmap], which still needs to be
+             * rotated by [rotation] degrees, stopping early if [cancellationSignal] is
+             * cancelled.
+             */
+            private fun createBlurKeyframes(
+                    sourceBitmap: Bitmap,
+                    rotation: Int,
+                    cancellationSignal: CancellationSignal?,
+                    loadTrace: PerfTrace?
+            ): List<Bitmap> {
+                // First, create a scaled down version of the bitmap so that the blur radius
+                // looks appropriate (sourceBitmap will likely be bigger than the final
+                // blurred bitmap, and thus the blur may look smaller if we just used
+                // sourceBitmap as the final blurred bitmap).
+
+                val uprightHeight = blurredHeight()
+                val uprightWidth = (uprightHeight * bitmapAspectRatio).toInt()
+                // The source bitmap isn't rotated, so swap the dimensions to match it.
+                // Note that image width should be a multiple of 4 to avoid
+                // issues with RenderScript allocations.
+                val (scaledWidth, scaledHeight) = if (rotation == 90 || rotation == 270)
+                    Math.max(4, uprightHeight.roundMult4()) to Math.max(1, uprightWidth)
+                else
+                    Math.max(4, uprightWidth.roundMult4()) to uprightHeight
+                val scaledBitmap = renderStats.measure(RenderStats.Stage.SCALE, loadTrace) {
+                    val bitmap = Bitmap.createScaledBitmap(sourceBitmap,
+                            scaledWidth, scaledHeight, true)
+                    if (bitmap.config != Bitmap.Config.ARGB_8888) {
+                        // The sharp keyframe may have been decoded as RGB_565 to save memory,
+                        // but blurring needs ARGB_8888
+                        val argbBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false)
+                        if (bitmap != sourceBitmap) {
+                            bitmap.recycle()
+                        }
+                        argbBitmap
+                    } else {
+                        bitmap
+                    }
+                }
+
+                // And finally, create a blurred copy for each keyframe.
+                val blurredBitmaps = ArrayList<Bitmap>(blurKeyframes)
+                val blurrer = ImageBlurrer(context, scaledBitmap)
+                for (f in 1..blurKeyframes) {
+                    if (cancellationSignal?.isCanceled == true) {
+                        break
+                    }
+                    val desaturateAmount = effects.maxGrey / 500f * f / blurKeyframes
+                    val blurRadius = if (effects.maxPrescaledBlurPixels > 0) {
+                        effects.blurRadiusAtFrame(f.toFloat())
+                    } else {
+                        0f
+                    }
+                    // Blur hides any banding, so store the blurred keyframes with reduced
+                    // precision to halve their heap and texture memory
+                    val blurredBitmap = renderStats.measure(
+                            RenderStats.Stage.BLUR_KEYFRAME, loadTrace) {
+                        blurrer.blurBitmap(blurRadius, desaturateAmount)
+                                ?.convertTo(RENDITION_CONFIG)
+                    }
+                    blurredBitmap?.let { blurredBitmaps += it }
+                }
+                blurrer.destroy()
+
+                if (scaledBitmap != sourceBitmap) {
+                    scaledBitmap.recycle()
+                }
+                return blurredBitmaps
+            }
+
+            fun destroy() {
+                for (f in 1..blurKeyframes) {
+                    if (sharedWith == null && pictures[f] != sharpPicture) {
+                        pictures[f]?.destroy()
+                    }
+                    pictures[f] = null
+                }
+                pictures[0] = null
+                sharedWith = null
+                loaded = false
+                effectsCacheKey = null
+                dimAmount = DEFAULT_MAX_DIM
+            }
+
+            fun drawFrame(globalAlpha: Float) {
+                val blurFrame = blurAnimator.currentValue
+                val lo = Math.floor(blurFrame.toDouble()).toInt()
+                val hi = Math.ceil(blurFrame.toDouble()).toInt()
+
+                val localHiAlpha = blurFrame - lo
+                when {
+                    globalAlpha <= 0 -> {
+                        // Nothing to draw
+                    }
+                    lo == hi -> {
+                        // Just draw one
+                        if (pictures[lo] == null) {
+                            return
+                        }
+
+                        pictures[lo]?.draw(globalAlpha)
+                    }
+                    globalAlpha == 1f -> {
+                        // Simple drawing
+                        if (pictures[lo] == null || pictures[hi] == null) {
+                            return
+                        }
+
+                        pictures[lo]?.draw(1f)
+                        pictures[hi]?.draw(localHiAlpha)
+                    }
+                    else -> {
+                        // If there's both a global and local alpha, re-compose alphas, to
+                        // effectively compose hi and lo before composing the result
+                        // with the background.
+                        //
+                        // The math, where a1,a2 are previous alphas and b1,b2 are new alphas:
+                        //   b1 = a1 * (a2 - 1) / (a1 * a2 - 1)
+                        //   b2 = a1 * a2
+                        if (pictures[lo] == null || pictures[hi] == null) {
+                            return
+                        }
+
+                        val newLocalLoAlpha = globalAlpha * (localHiAlpha - 1) / (globalAlpha * localHiAlpha - 1)
+                        val newLocalHiAlpha = globalAlpha * localHiAlpha
+                        pictures[lo]?.draw(newLocalLoAlpha)
+                        pictures[hi]?.draw(newLocalHiAlpha)
+                    }
+                }
+            }
+        }
+
+        /**
+         * Loads the artwork from [imageLoader], which is [width] by [height] once rotated.
+         *
+         * A tiny copy of the artwork is decoded and uploaded immediately as a placeholder.
+         * The keyframes are then decoded and blurred in the background and replace the
+         * placeholder once they are uploaded.
+         */
+        internal fun load(imageLoader: ImageLoader, width: Int, height: Int) {
+            destroyPictures()
 
-        internal fun load(imageLoader: ImageLoader) {
-            val (width, height) = imageLoader.getSize()
             hasBitmap = width != 0 && height != 0
             bitmapAspectRatio = if (hasBitmap)
                 width * 1f / height
             else
                 1f
 
-            dimAmount = DEFAULT_MAX_DIM
-
-            destroyPictures()
+            darkness = 0f
+            rotation = 0
 
             if (hasBitmap) {
-                // Calculate image darkness to determine dim amount
-                var tempBitmap = imageLoader.decode(64)
-                val darkness = tempBitmap.darkness()
-                dimAmount = if (demoMode)
-                    DEMO_DIM
+                val loadStartNanos = System.nanoTime()
+                val loadTrace = renderStats.startLoadTrace()
+                this.loadTrace = loadTrace
+                loadPlaceholder(imageLoader, loadTrace)
+
+                val sharpCacheKey = sharpCacheKey(imageLoader)
+                this.sharpCacheKey = sharpCacheKey
+                val plan = DecodePlanner.planWallpaper(memoryClass, isLowRamDevice,
+                        currentHeight, width, height)
+                this.imageLoader = imageLoader
+                this.plan = plan
+                Log.d(TAG, "Decoding ${width}x$height artwork with $plan")
+
+                // Load the keyframes for the current effects first, then the other
+                // effects if there's enough memory to keep both loaded
+                val (current, other) = if (isOnLockScreen)
+                    lockScreenKeyframes to homeKeyframes
                 else
-                    (maxDim * (1 - DIM_RANGE + DIM_RANGE * Math.sqrt(darkness.toDouble()))).toInt()
-                tempBitmap?.recycle()
-
-                // Create the GLPicture objects
-                var success = false
-                var sampleSize = 1
-                do {
-                    val attemptedWidth = (bitmapAspectRatio * currentHeight / sampleSize).toInt()
-                    val attemptedHeight = currentHeight / sampleSize
-                    try {
-                        val image = imageLoader.decode(
-                                attemptedWidth,
-                                attemptedHeight)
-                        pictures[0] = image?.toGLPicture()
-                        success = true
-                    } catch (e: OutOfMemoryError) {
-                        sampleSize = sampleSize shl 1
-                        Log.d(TAG, "Decoding image at ${attemptedWidth}x$attemptedHeight " +
-                                "was too large, trying a sample size of $sampleSize")
-                    }
-                } while (!success)
-                if (maxPrescaledBlurPixels == 0 && maxGrey == 0) {
-                    for (f in 1..blurKeyframes) {
-                        pictures[f] = pictures[0]
-                    }
-                } else {
-                    val sampleSizeTargetHeight: Int = if (maxPrescaledBlurPixels > 0) {
-                        currentHeight / blurredSampleSize
-                    } else {
-                        currentHeight
+                    homeKeyframes to lockScreenKeyframes
+                val loadOther = keepLockScreenKeyframes
+                current.effectsCacheKey = current.effects.cacheKey
+                if (loadOther) {
+                    other.effectsCacheKey = other.effects.cacheKey
+                }
+                val generation = loadGeneration
+                val loadRotation = rotation
+                val cancellationSignal = CancellationSignal()
+                loadCancellationSignal = cancellationSignal
+                loadJob = launch {
+                    val cacheWrites = ArrayList<PendingCacheWrite>()
+                    val sharpBitmap = loadSharpKeyframe(imageLoader, plan, sharpCacheKey,
+                            cancellationSignal, loadTrace, cacheWrites)
+                    val currentBitmaps = sharpBitmap?.let { bitmap ->
+                        current.createBitmaps(bitmap,
+                                sharpCacheKey?.let { key -> "$key:${current.effects.cacheKey}" },
+                                loadRotation, cancellationSignal, loadTrace, cacheWrites)
+                    } ?: emptyList()
+                    val otherBitmaps = sharpBitmap?.takeIf {
+                        loadOther && !other.canShareWith(current)
+                    }?.let { bitmap ->
+                        other.createBitmaps(bitmap,
+                                sharpCacheKey?.let { key -> "$key:${other.effects.cacheKey}" },
+                                loadRotation, cancellationSignal, loadTrace, cacheWrites)
+                    } ?: emptyList()
+                    if (cancellationSignal.isCanceled) {
+                        // Don't bother queueing the upload of a superseded load
+                        sharpBitmap?.recycle()
+                        currentBitmaps.forEach { it.recycle() }
+                        otherBitmaps.forEach { it.recycle() }
+                        return@launch
                     }
-                    // Note that image width should be a multiple of 4 to avoid
-                    // issues with RenderScript allocations.
-                    val scaledHeight = Math.max(2, sampleSizeTargetHeight.floorEven())
-                    val scaledWidth = Math.max(4, (scaledHeight * bitmapAspectRatio).toInt().roundMult4())
-
-                    // To blur, first load the entire bitmap region, but at a very large
-                    // sample size that's appropriate for the final blurred image
-                    tempBitmap = imageLoader.decode(scaledWidth, scaledHeight)
-
-                    if (tempBitmap != null
-                            && tempBitmap.width != 0 && tempBitmap.height != 0) {
-                        // Next, create a scaled down version of the bitmap so that the blur radius
-                        // looks appropriate (tempBitmap will likely be bigger than the final
-                        // blurred bitmap, and thus the blur may look smaller if we just used
-                        // tempBitmap as the final blurred bitmap).
-
-                        // Note that image width should be a multiple of 4 to avoid
-                        // issues with RenderScript allocations.
-                        val scaledBitmap = Bitmap.createScaledBitmap(
-                                tempBitmap, scaledWidth, scaledHeight, true)
-                        if (tempBitmap != scaledBitmap) {
-                            tempBitmap.recycle()
+                    callbacks.queueEventOnGlThread {
+                        if (generation != loadGeneration) {
+                            // This picture set was destroyed or reloaded in the meantime
+                            sharpBitmap?.recycle()
+                            currentBitmaps.forEach { it.recycle() }
+                            otherBitmaps.forEach { it.recycle() }
+                            return@queueEventOnGlThread
                         }
-
-                        // And finally, create a blurred copy for each keyframe.
-                        val blurrer = ImageBlurrer(context, scaledBitmap)
-                        for (f in 1..blurKeyframes) {
-                            val desaturateAmount = maxGrey / 500f * f / blurKeyframes
-                            val blurRadius = if (maxPrescaledBlurPixels > 0) {
-                                blurRadiusAtFrame(f.toFloat())
-                            } else {
-                                0f
+                        loadJob = null
+                        loadCancellationSignal = null
+                        // Bitmaps still to be cached are recycled once they are written
+                        val cachedBitmaps = cacheWrites.flatMap { it.bitmaps }
+                        renderStats.measure(RenderStats.Stage.UPLOAD, loadTrace) {
+                            sharpPicture = sharpBitmap?.toGLPicture()
+                            current.upload(currentBitmaps, other,
+                                    currentBitmaps.none { it in cachedBitmaps })
+                            if (loadOther) {
+                                other.upload(otherBitmaps, current,
+                                        otherBitmaps.none { it in cachedBitmaps })
                             }
-                            val blurredBitmap = blurrer.blurBitmap(blurRadius, desaturateAmount)
-                            pictures[f] = blurredBitmap?.toGLPicture()
-                            blurredBitmap?.recycle()
                         }
-                        blurrer.destroy()
-
-                        scaledBitmap.recycle()
-                    } else {
-                        Log.e(TAG, "ImageLoader failed to decode the image")
-                        for (f in 1..blurKeyframes) {
-                            pictures[f] = null
+                        renderStats.recordStage(RenderStats.Stage.TOTAL,
+                                System.nanoTime() - loadStartNanos, loadTrace)
+                        loadTrace?.stop()
+                        this.loadTrace = null
+                        if (retainBlurSource) {
+                            blurSource = sharpBitmap
+                        } else if (sharpBitmap != null && sharpBitmap !in cachedBitmaps) {
+                            sharpBitmap.recycle()
                         }
+                        writeToKeyframeCache(cacheWrites, blurSource)
+                        if (sharpPicture != null) {
+                            // Fade out the placeholder to reveal the keyframes
+                            placeholderAnimator.start(endValue = 0) {}
+                        }
+                        callbacks.requestRender()
                     }
                 }
             }
@@ -407,6 +878,225 @@ class MuzeiBlurRenderer(
             callbacks.requestRender()
         }
 
+        /**
+         * Decodes a tiny copy of the artwork to compute its [darkness] and [rotation], and
+         * uploads it as the placeholder. GL filtering blurs it when it is scaled up.
+         */
+        private fun loadPlaceholder(imageLoader: ImageLoader, loadTrace: PerfTrace?) {
+            val placeholder = renderStats.measure(RenderStats.Stage.PLACEHOLDER, loadTrace) {
+                imageLoader.decodeOriented(PLACEHOLDER_SIZE)
+            } ?: return
+            // Rotation doesn't affect the darkness, so there's no need to rotate the bitmap
+            darkness = renderStats.measure(RenderStats.Stage.DARKNESS, loadTrace) {
+                placeholder.bitmap.darkness()
+            }
+            rotation = placeholder.rotation
+            updateDimAmounts()
+            placeholderPicture = placeholder.bitmap.toGLPicture()
+            placeholder.bitmap.recycle()
+            placeholderAnimator.currentValue = 1f
+        }
+
+        /**
+         * Loads the sharp keyframe, either from the [keyframeCache] or by decoding the
+         * artwork according to the [plan]. A freshly decoded keyframe is added to
+         * [cacheWrites] to be cached under [cacheKey] once uploaded. This doesn't touch
+         * any GL state, so it can be called off the GL thread.
+         */
+        private fun loadSharpKeyframe(
+                imageLoader: ImageLoader,
+                plan: DecodePlan,
+                cacheKey: String?,
+                cancellationSignal: CancellationSignal,
+                loadTrace: PerfTrace?,
+                cacheWrites: MutableList<PendingCacheWrite>
+        ): Bitmap? {
+            val cachedKeyframes = cacheKey?.let { key ->
+                renderStats.measure(RenderStats.Stage.CACHE_READ, loadTrace) {
+                    keyframeCache.get(key)
+                }
+            }
+            if (cachedKeyframes != null && cachedKeyframes.bitmaps.size == 1) {
+                return cachedKeyframes.bitmaps[0]
+            }
+
+            val sharpBitmap = renderStats.measure(RenderStats.Stage.OPEN_AND_DECODE, loadTrace) {
+                imageLoader.decodeOriented(plan, cancellationSignal)?.bitmap
+            }
+            if (cacheKey != null && sharpBitmap != null) {
+                cacheWrites += PendingCacheWrite(cacheKey, listOf(sharpBitmap))
+            }
+            return sharpBitmap
+        }
+
+        /**
+         * Advances the placeholder animation, returning true if it is still running
+         */
+        internal fun tickPlaceholder(): Boolean {
+            val animating = placeholderAnimator.tick()
+            if (!animating && placeholderAnimator.currentValue == 0f) {
+                placeholderPicture?.destroy()
+                placeholderPicture = null
+            }
+            return animating
+        }
+
+        /**
+         * Whether this picture set already shows (or is loading) the artwork from
+         * [imageLoader] at the current surface height with the current effects, in which
+         * case reloading it would only redo the same work.
+         */
+        internal fun isLoadedFrom(imageLoader: ImageLoader): Boolean {
+            val key = sharpCacheKey(imageLoader) ?: return false
+            val keyframes = if (isOnLockScreen) lockScreenKeyframes else homeKeyframes
+            return hasBitmap && key == sharpCacheKey &&
+                    (loadJob != null || sharpPicture != null) &&
+                    keyframes.effectsCacheKey == keyframes.effects.cacheKey
+        }
+
+        internal fun updateDimAmounts() {
+            homeKeyframes.updateDimAmount()
+            lockScreenKeyframes.updateDimAmount()
+        }
+
+        /**
+         * Whether the keyframes for the home screen or lock screen effects are loaded
+         */
+        internal fun hasKeyframesFor(lockScreen: Boolean) = !hasBitmap ||
+                (if (lockScreen) lockScreenKeyframes else homeKeyframes).loaded ||
+                (loadJob != null && keepLockScreenKeyframes)
+
+        internal fun dimAmount(lockScreenAmount: Float): Float = interpolate(
+                homeKeyframes.dimAmount.toFloat(),
+                lockScreenKeyframes.dimAmount.toFloat(),
+                lockScreenAmount)
+
+        /**
+         * Applies the current blur, dim and grey amounts. The dim amounts only depend on
+         * the [darkness], while re-blurring uses the retained [blurSource] in the
+         * background. Returns false if there is no blur source and the artwork must be
+         * reloaded.
+         */
+        internal fun reapplyEffects(reblur: Boolean): Boolean {
+            if (!hasBitmap) {
+                return true
+            }
+            updateDimAmounts()
+            if (!reblur) {
+                return true
+            }
+            val source = blurSource
+            if (source == null) {
+                if (blurSourceJob != null) {
+                    // Reblur as soon as the blur source is back
+                    reblurPending = true
+                    return true
+                }
+                return false
+            }
+            cancelReblur()
+            val homeLoaded = homeKeyframes.loaded
+            val lockScreenLoaded = lockScreenKeyframes.loaded
+            val shareLockScreen = homeLoaded && lockScreenKeyframes.canShareWith(homeKeyframes)
+            val homeCacheKey = homeKeyframes.effects.cacheKey
+            val lockScreenCacheKey = lockScreenKeyframes.effects.cacheKey
+            val generation = loadGeneration
+            val reblurRotation = rotation
+            val cancellationSignal = CancellationSignal()
+            reblurCancellationSignal = cancellationSignal
+            reblurJob = launch {
+                // Intermediate effects aren't worth caching, so don't pass a cache key
+                val homeBitmaps = if (homeLoaded)
+                    homeKeyframes.createBitmaps(source, null, reblurRotation, cancellationSignal)
+                else
+                    emptyList()
+                val lockScreenBitmaps = if (lockScreenLoaded && !shareLockScreen)
+                    lockScreenKeyframes.createBitmaps(source, null, reblurRotation,
+                            cancellationSignal)
+                else
+                    emptyList()
+                if (cancellationSignal.isCanceled) {
+                    homeBitmaps.forEach { it.recycle() }
+                    lockScreenBitmaps.forEach { it.recycle() }
+                    return@launch
+                }
+                callbacks.queueEventOnGlThread {
+                    if (generation != loadGeneration || cancellationSignal.isCanceled) {
+                        // Superseded by a newer reblur or load
+                        homeBitmaps.forEach { it.recycle() }
+                        lockScreenBitmaps.forEach { it.recycle() }
+                        return@queueEventOnGlThread
+                    }
+                    reblurJob = null
+                    reblurCancellationSignal = null
+                    homeKeyframes.destroy()
+                    lockScreenKeyframes.destroy()
+                    if (homeLoaded) {
+                        homeKeyframes.effectsCacheKey = homeCacheKey
+                        homeKeyframes.upload(homeBitmaps, lockScreenKeyframes)
+                    }
+                    if (lockScreenLoaded) {
+                        lockScreenKeyframes.effectsCacheKey = lockScreenCacheKey
+                        lockScreenKeyframes.upload(lockScreenBitmaps, homeKeyframes)
+                    }
+                    callbacks.requestRender()
+                }
+            }
+            return true
+        }
+
+        private fun cancelReblur() {
+            reblurCancellationSignal?.cancel()
+            reblurCancellationSignal = null
+            reblurJob?.cancel()
+            reblurJob = null
+        }
+
+        /**
+         * Makes sure the [blurSource] is available, loading the sharp keyframe again in
+         * the background (usually from the [keyframeCache]) if it was already released.
+         * Loads still in progress retain their sharp keyframe when they finish.
+         */
+        internal fun retainBlurSource() {
+            if (!hasBitmap || blurSource != null || blurSourceJob != null || loadJob != null) {
+                return
+            }
+            val imageLoader = imageLoader ?: return
+            val plan = plan ?: return
+            val cacheKey = sharpCacheKey
+            val generation = loadGeneration
+            val cancellationSignal = CancellationSignal()
+            blurSourceCancellationSignal = cancellationSignal
+            blurSourceJob = launch {
+                val cacheWrites = ArrayList<PendingCacheWrite>()
+                val sharpBitmap = loadSharpKeyframe(imageLoader, plan, cacheKey,
+                        cancellationSignal, null, cacheWrites)
+                callbacks.queueEventOnGlThread {
+                    if (generation != loadGeneration || cancellationSignal.isCanceled) {
+                        sharpBitmap?.recycle()
+                        return@queueEventOnGlThread
+                    }
+                    blurSourceJob = null
+                    blurSourceCancellationSignal = null
+                    blurSource = sharpBitmap
+                    writeToKeyframeCache(cacheWrites, sharpBitmap)
+                    if (reblurPending) {
+                        reblurPending = false
+                        reapplyEffects(true)
+                    }
+                }
+            }
+        }
+
+        internal fun releaseBlurSource() {
+            blurSourceCancellationSignal?.cancel()
+            blurSourceCancellationSignal = null
+            blurSourceJob?.cancel()
+            blurSourceJob = null
+            reblurPending = false
+            blurSource = null
+        }
+
         internal fun recomputeTransformMatrices() {
             val screenToBitmapAspectRatio = aspectRatio / bitmapAspectRatio
             if (screenToBitmapAspectRatio == 0f) {
@@ -436,7 +1126,7 @@ class MuzeiBlurRenderer(
 
             val focusAmount = (blurKeyframes - blurAnimator.currentValue) / blurKeyframes
             if (blurRelatedToArtDetailMode && focusAmount > 0) {
-                val artDetailViewport = ArtDetailViewport.getViewport(id)
+                ArtDetailViewport.getViewport(id, artDetailViewport)
                 if (artDetailViewport.width() == 0f || artDetailViewport.height() == 0f) {
                     if (!demoMode && !preview) {
                         // reset art detail viewport
@@ -473,73 +1163,115 @@ class MuzeiBlurRenderer(
                     currentViewport.left, currentViewport.right,
                     currentViewport.bottom, currentViewport.top,
                     1f, 10f)
+
+            // Pictures fill the square from -1 to 1 regardless of their aspect ratio, so
+            // rotating that square around its center rotates the picture in place. EXIF
+            // rotations are clockwise, which is a negative angle with GL's upward y axis.
+            Matrix.setRotateM(rotationMatrix, 0, -rotation.toFloat(), 0f, 0f, 1f)
         }
 
-        internal fun drawFrame(globalAlpha: Float) {
+        internal fun drawFrame(globalAlpha: Float, lockScreenAmount: Float) {
             if (!hasBitmap) {
                 return
             }
 
-            Matrix.multiplyMM(mvpMatrix, 0, viewMatrix, 0, modelMatrix, 0)
+            Matrix.multiplyMM(mvpMatrix, 0, modelMatrix, 0, rotationMatrix, 0)
+            Matrix.multiplyMM(mvpMatrix, 0, viewMatrix, 0, mvpMatrix, 0)
             Matrix.multiplyMM(mvpMatrix, 0, projectionMatrix, 0, mvpMatrix, 0)
 
-            val blurFrame = blurAnimator.currentValue
-            val lo = Math.floor(blurFrame.toDouble()).toInt()
-            val hi = Math.ceil(blurFrame.toDouble()).toInt()
-
-            val localHiAlpha = blurFrame - lo
+            val home = homeKeyframes.takeIf { it.loaded } ?: lockScreenKeyframes
+            val lockScreen = lockScreenKeyframes.takeIf { it.loaded } ?: homeKeyframes
+            // All pictures in the set share the same program and MVP matrix
+            GLPicture.beginDraw(mvpMatrix)
             when {
-                globalAlpha <= 0 -> {
-                    // Nothing to draw
-                }
-                lo == hi -> {
-                    // Just draw one
-                    if (pictures[lo] == null) {
-                        return
-                    }
-
-                    pictures[lo]?.draw(mvpMatrix, globalAlpha)
-                }
-                globalAlpha == 1f -> {
-                    // Simple drawing
-                    if (pictures[lo] == null || pictures[hi] == null) {
-                        return
-                    }
-
-                    pictures[lo]?.draw(mvpMatrix, 1f)
-                    pictures[hi]?.draw(mvpMatrix, localHiAlpha)
-                }
+                lockScreenAmount <= 0f || home == lockScreen -> home.drawFrame(globalAlpha)
+                lockScreenAmount >= 1f -> lockScreen.drawFrame(globalAlpha)
                 else -> {
-                    // If there's both a global and local alpha, re-compose alphas, to
-                    // effectively compose hi and lo before composing the result
-                    // with the background.
-                    //
-                    // The math, where a1,a2 are previous alphas and b1,b2 are new alphas:
-                    //   b1 = a1 * (a2 - 1) / (a1 * a2 - 1)
-                    //   b2 = a1 * a2
-                    if (pictures[lo] == null || pictures[hi] == null) {
-                        return
-                    }
-
-                    val newLocalLoAlpha = globalAlpha * (localHiAlpha - 1) / (globalAlpha * localHiAlpha - 1)
-                    val newLocalHiAlpha = globalAlpha * localHiAlpha
-                    pictures[lo]?.draw(mvpMatrix, newLocalLoAlpha)
-                    pictures[hi]?.draw(mvpMatrix, newLocalHiAlpha)
+                    // Crossfade between the home and lock screen keyframes
+                    home.drawFrame(globalAlpha)
+                    lockScreen.drawFrame(globalAlpha * lockScreenAmount)
                 }
             }
+            val placeholderAlpha = placeholderAnimator.currentValue
+            if (placeholderAlpha > 0f) {
+                placeholderPicture?.draw(globalAlpha * placeholderAlpha)
+            }
+            GLPicture.endDraw()
+        }
+
+        /**
+         * Cancels the background load of the keyframes, if any, dropping its results.
+         * The placeholder stays in place.
+         */
+        internal fun cancelLoad() {
+            loadGeneration++
+            loadCancellationSignal?.cancel()
+            loadCancellationSignal = null
+            loadJob?.cancel()
+            loadJob = null
+            loadTrace?.apply {
+                putAttribute("cancelled", "true")
+                stop()
+            }
+            loadTrace = null
+            cancelReblur()
+            blurSourceCancellationSignal?.cancel()
+            blurSourceCancellationSignal = null
+            blurSourceJob?.cancel()
+            blurSourceJob = null
+            reblurPending = false
         }
 
         internal fun destroyPictures() {
-            for (i in pictures.indices) {
-                if (pictures[i] != null) {
-                    pictures[i]?.destroy()
-                    pictures[i] = null
+            cancelLoad()
+            placeholderPicture?.destroy()
+            placeholderPicture = null
+            placeholderAnimator.currentValue = 0f
+            blurSource = null
+            sharpCacheKey = null
+            imageLoader = null
+            plan = null
+            homeKeyframes.destroy()
+            lockScreenKeyframes.destroy()
+            sharpPicture?.destroy()
+            sharpPicture = null
+        }
+    }
+
+    /**
+     * Writes the [cacheWrites] to the [keyframeCache] in the background, so that the disk
+     * I/O never holds up showing the artwork, then recycles their bitmaps other than
+     * [retainedBitmap].
+     */
+    private fun writeToKeyframeCache(
+            cacheWrites: List<PendingCacheWrite>,
+            retainedBitmap: Bitmap?
+    ) {
+        if (cacheWrites.isEmpty()) {
+            return
+        }
+        launch {
+            cacheWrites.forEach { cacheWrite ->
+                keyframeCache.put(cacheWrite.key, KeyframeCache.Keyframes(cacheWrite.bitmaps))
+                cacheWrite.bitmaps.forEach { bitmap ->
+                    if (bitmap !== retainedBitmap) {
+                        bitmap.recycle()
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Returns the key identifying the sharp keyframe of the artwork from [imageLoader] at
+     * the current surface size, or null if it can't be cached.
+     */
+    private fun sharpCacheKey(imageLoader: ImageLoader) = imageLoader.cacheKey?.let { key ->
+        "$key:${(aspectRatio * currentHeight).toInt()}x$currentHeight"
+    }
+
     fun destroy() {
+        lastImageLoader = null
         currentGLPictureSet.destroyPictures()
         nextGLPictureSet.destroyPictures()
     }
@@ -562,6 +1294,7 @@ class MuzeiBlurRenderer(
     }
 
     interface Callbacks {
+        fun queueEventOnGlThread(event: () -> Unit)
         fun requestRender()
     }
 }
@@ -45,10 +45,13 @@ class RealRenderController(
     /**
      * Create a [ImageLoader] for the current artwork. If [artworkLiveData]
      * doesn't have artwork yet (as is the case when in Direct Boot), then we
-     * use [MuzeiContract.Artwork.CONTENT_URI].
+     * use [MuzeiContract.Artwork.CONTENT_URI], which can't be cached as it
+     * changes with the current artwork.
      */
     override suspend fun openDownloadedCurrentArtwork() =
-            ContentUriImageLoader(context.contentResolver,
-                    artworkLiveData.value?.contentUri
-                            ?: MuzeiContract.Artwork.CONTENT_URI)
+            artworkLiveData.value?.let { artwork ->
+                ContentUriImageLoader(context.contentResolver,
+                        artwork.contentUri, "artwork:${artwork.id}")
+            } ?: ContentUriImageLoader(context.contentResolver,
+                    MuzeiContract.Artwork.CONTENT_URI)
 }
@@ -21,7 +21,10 @@ import android.arch.lifecycle.LifecycleOwner
 import android.content.Context
 import android.content.SharedPreferences
 import android.os.Handler
+import com.google.android.apps.muzei.settings.EffectsScreenOpenLiveData
 import com.google.android.apps.muzei.settings.Prefs
+import com.google.android.apps.muzei.util.observeNonNull
+import kotlinx.coroutines.experimental.Job
 import kotlinx.coroutines.experimental.android.UI
 import kotlinx.coroutines.experimental.launch
 
@@ -49,47 +52,36 @@ abstract class RenderController(
         set(value) {
             if (field != value) {
                 field = value
-                renderer.recomputeMaxPrescaledBlurPixels(
-                        if (value) Prefs.PREF_LOCK_BLUR_AMOUNT else Prefs.PREF_BLUR_AMOUNT)
-                renderer.recomputeMaxDimAmount(
-                        if (value) Prefs.PREF_LOCK_DIM_AMOUNT else Prefs.PREF_DIM_AMOUNT)
-                renderer.recomputeGreyAmount(
-                        if (value) Prefs.PREF_LOCK_GREY_AMOUNT else Prefs.PREF_GREY_AMOUNT)
-                reloadCurrentArtwork()
+                callbacks.queueEventOnGlThread {
+                    // The renderer crossfades to the other effects if it has them
+                    // loaded, otherwise the artwork needs to be reloaded
+                    if (!renderer.setOnLockScreen(value)) {
+                        launch(UI) {
+                            reloadCurrentArtwork()
+                        }
+                    }
+                }
             }
         }
     private var destroyed = false
     private var queuedImageLoader: ImageLoader? = null
+    private var reloadJob: Job? = null
+    private var effectsScreenOpen = false
     private val sharedPreferenceChangeListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
-        if (onLockScreen) {
-            when (key) {
-                Prefs.PREF_LOCK_BLUR_AMOUNT -> {
-                    renderer.recomputeMaxPrescaledBlurPixels()
-                    throttledForceReloadCurrentArtwork()
-                }
-                Prefs.PREF_LOCK_DIM_AMOUNT -> {
-                    renderer.recomputeMaxDimAmount()
-                    throttledForceReloadCurrentArtwork()
-                }
-                Prefs.PREF_LOCK_GREY_AMOUNT -> {
-                    renderer.recomputeGreyAmount()
-                    throttledForceReloadCurrentArtwork()
-                }
+        // The renderer keeps both the home screen and lock screen effects,
+        // so changes to either need to be applied
+        when (key) {
+            Prefs.PREF_BLUR_AMOUNT, Prefs.PREF_LOCK_BLUR_AMOUNT -> {
+                renderer.recomputeMaxPrescaledBlurPixels()
+                reapplyEffects()
             }
-        } else {
-            when (key) {
-                Prefs.PREF_BLUR_AMOUNT -> {
-                    renderer.recomputeMaxPrescaledBlurPixels()
-                    throttledForceReloadCurrentArtwork()
-                }
-                Prefs.PREF_DIM_AMOUNT -> {
-                    renderer.recomputeMaxDimAmount()
-                    throttledForceReloadCurrentArtwork()
-                }
-                Prefs.PREF_GREY_AMOUNT -> {
-                    renderer.recomputeGreyAmount()
-                    throttledForceReloadCurrentArtwork()
-                }
+            Prefs.PREF_DIM_AMOUNT, Prefs.PREF_LOCK_DIM_AMOUNT -> {
+                renderer.recomputeMaxDimAmount()
+                reapplyEffects(reblur = false)
+            }
+            Prefs.PREF_GREY_AMOUNT, Prefs.PREF_LOCK_GREY_AMOUNT -> {
+                renderer.recomputeGreyAmount()
+                reapplyEffects()
             }
         }
     }
@@ -104,15 +96,41 @@ abstract class RenderController(
     override fun onCreate(owner: LifecycleOwner) {
         Prefs.getSharedPreferences(context)
                 .registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener)
+        EffectsScreenOpenLiveData.observeNonNull(owner) { isEffectsScreenOpen ->
+            effectsScreenOpen = isEffectsScreenOpen
+            callbacks.queueEventOnGlThread {
+                renderer.retainBlurSource = isEffectsScreenOpen
+            }
+        }
     }
 
     override fun onDestroy(owner: LifecycleOwner) {
+        reloadJob?.cancel()
         queuedImageLoader = null
         Prefs.getSharedPreferences(context)
                 .unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener)
         destroyed = true
     }
 
+    /**
+     * Applies changed effect settings. While the effects screen is open, the renderer
+     * retains the current artwork so only the blur (if [reblur] is true) needs to be
+     * redone. Otherwise, the artwork is reloaded.
+     */
+    private fun reapplyEffects(reblur: Boolean = true) {
+        if (!effectsScreenOpen) {
+            throttledForceReloadCurrentArtwork()
+            return
+        }
+        callbacks.queueEventOnGlThread {
+            if (!renderer.reapplyEffects(reblur)) {
+                launch(UI) {
+                    throttledForceReloadCurrentArtwork()
+                }
+            }
+        }
+    }
+
     private fun throttledForceReloadCurrentArtwork() {
         throttledForceReloadHandler.removeMessages(0)
         throttledForceReloadHandler.sendEmptyMessageDelayed(0, 250)
@@ -125,8 +143,13 @@ abstract class RenderController(
             // Don't reload artwork for destroyed RenderControllers
             return
         }
-        launch(UI) {
+        // Only the most recent reload matters when the artwork changes in quick succession
+        reloadJob?.cancel()
+        reloadJob = launch(UI) {
             val imageLoader = openDownloadedCurrentArtwork()
+            if (!isActive) {
+                return@launch
+            }
 
             callbacks.queueEventOnGlThread {
                 if (visible) {
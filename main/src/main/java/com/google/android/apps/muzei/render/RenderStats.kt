@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.os.Trace
+import com.google.firebase.perf.FirebasePerformance
+import java.io.PrintWriter
+import java.util.concurrent.TimeUnit
+import com.google.firebase.perf.metrics.Trace as PerfTrace
+
+/**
+ * Frame timings and artwork load latencies of one [MuzeiBlurRenderer], kept in fixed size
+ * ring buffers so that recording them doesn't allocate. They can be printed with
+ * [dump], and each measured section also shows up in systrace. The loads are only
+ * reported to Firebase Performance if [reportLoadTraces] is set.
+ */
+internal class RenderStats(private val reportLoadTraces: Boolean = false) {
+
+    companion object {
+        private const val FRAME_HISTORY = 120
+        private const val STAGE_HISTORY = 128
+        private val FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 60
+    }
+
+    /**
+     * The stages of loading an artwork. [OPEN_AND_DECODE] includes opening the input
+     * stream and reading its EXIF rotation.
+     */
+    enum class Stage(val sectionName: String) {
+        BOUNDS("MuzeiBlurRenderer.bounds"),
+        PLACEHOLDER("MuzeiBlurRenderer.placeholder"),
+        DARKNESS("MuzeiBlurRenderer.darkness"),
+        CACHE_READ("MuzeiBlurRenderer.cacheRead"),
+        OPEN_AND_DECODE("MuzeiBlurRenderer.decode"),
+        SCALE("MuzeiBlurRenderer.scale"),
+        BLUR_KEYFRAME("MuzeiBlurRenderer.blurKeyframe"),
+        UPLOAD("MuzeiBlurRenderer.upload"),
+        TOTAL("MuzeiBlurRenderer.load");
+
+        val metricName = name.toLowerCase() + "_ms"
+    }
+
+    private val frameDurations = LongArray(FRAME_HISTORY)
+    private var frameIndex = 0
+    private var frameCount = 0L
+    private var slowFrameCount = 0L
+    private var droppedFrameCount = 0L
+    private var lastFrameStartNanos = 0L
+    private var lastFrameRequestedNext = false
+
+    private val stages = IntArray(STAGE_HISTORY)
+    private val stageDurations = LongArray(STAGE_HISTORY)
+    private var stageIndex = 0
+    private var stageCount = 0L
+
+    /**
+     * Marks the start of a frame on the GL thread, returning the start time to pass to
+     * [endFrame].
+     */
+    fun beginFrame(): Long {
+        Trace.beginSection("MuzeiBlurRenderer.onDrawFrame")
+        return System.nanoTime()
+    }
+
+    /**
+     * Marks the end of the frame started at [startNanos]. [requestedNext] is whether the
+     * frame requested another frame to continue an animation, in which case any gap
+     * before the next frame longer than a frame interval counts as dropped frames.
+     */
+    fun endFrame(startNanos: Long, requestedNext: Boolean) {
+        val durationNanos = System.nanoTime() - startNanos
+        Trace.endSection()
+        synchronized(this) {
+            if (lastFrameRequestedNext) {
+                val intervalNanos = startNanos - lastFrameStartNanos
+                if (intervalNanos > FRAME_INTERVAL_NANOS * 3 / 2) {
+                    droppedFrameCount += intervalNanos / FRAME_INTERVAL_NANOS - 1
+                }
+            }
+            if (durationNanos > FRAME_INTERVAL_NANOS) {
+                slowFrameCount++
+            }
+            lastFrameStartNanos = startNanos
+            lastFrameRequestedNext = requestedNext
+            frameDurations[frameIndex] = durationNanos
+            frameIndex = (frameIndex + 1) % FRAME_HISTORY
+            frameCount++
+        }
+    }
+
+    /**
+     * Starts a Firebase Performance trace covering the load of one artwork, or returns
+     * null if [reportLoadTraces] isn't set. The stages measured with it are added to
+     * the trace as metrics.
+     */
+    fun startLoadTrace(): PerfTrace? = if (reportLoadTraces) {
+        FirebasePerformance.getInstance().newTrace("wallpaper_artwork_load").apply {
+            start()
+        }
+    } else {
+        null
+    }
+
+    /**
+     * Runs [block] as the given [stage], recording how long it took and adding it to the
+     * optional [loadTrace].
+     */
+    inline fun <T> measure(stage: Stage, loadTrace: PerfTrace? = null, block: () -> T): T {
+        Trace.beginSection(stage.sectionName)
+        val startNanos = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            val durationNanos = System.nanoTime() - startNanos
+            Trace.endSection()
+            recordStage(stage, durationNanos, loadTrace)
+        }
+    }
+
+    @PublishedApi
+    internal fun recordStage(stage: Stage, durationNanos: Long, loadTrace: PerfTrace? = null) {
+        synchronized(this) {
+            stages[stageIndex] = stage.ordinal
+            stageDurations[stageIndex] = durationNanos
+            stageIndex = (stageIndex + 1) % STAGE_HISTORY
+            stageCount++
+        }
+        loadTrace?.incrementMetric(stage.metricName,
+                TimeUnit.NANOSECONDS.toMillis(durationNanos))
+    }
+
+    private fun Long.formatMillis() = String.format("%.2fms", this / 1e6)
+
+    fun dump(writer: PrintWriter, prefix: String) = synchronized(this) {
+        writer.println("${prefix}Frames: $frameCount drawn, $slowFrameCount slower " +
+                "than ${FRAME_INTERVAL_NANOS.formatMillis()}, $droppedFrameCount dropped")
+        val recentFrames = Math.min(frameCount, FRAME_HISTORY.toLong()).toInt()
+        if (recentFrames > 0) {
+            val sorted = frameDurations.copyOf(recentFrames).sorted()
+            writer.println("$prefix  Last $recentFrames frames: " +
+                    "median ${sorted[recentFrames / 2].formatMillis()}, " +
+                    "90th percentile ${sorted[recentFrames * 9 / 10].formatMillis()}, " +
+                    "max ${sorted[recentFrames - 1].formatMillis()}")
+        }
+        val recentStages = Math.min(stageCount, STAGE_HISTORY.toLong()).toInt()
+        writer.println("${prefix}Load stages: $stageCount measured")
+        Stage.values().forEach { stage ->
+            var count = 0
+            var total = 0L
+            var max = 0L
+            var last = 0L
+            // Walk the ring buffer from the oldest to the most recent entry
+            for (i in 0 until recentStages) {
+                val index = (stageIndex - recentStages + i + STAGE_HISTORY) % STAGE_HISTORY
+                if (stages[index] == stage.ordinal) {
+                    val duration = stageDurations[index]
+                    count++
+                    total += duration
+                    max = Math.max(max, duration)
+                    last = duration
+                }
+            }
+            if (count > 0) {
+                writer.println("$prefix  ${stage.name.toLowerCase()}: last " +
+                        "${last.formatMillis()}, average ${(total / count).formatMillis()}, " +
+                        "max ${max.formatMillis()} ($count samples)")
+            }
+        }
+    }
+}
@@ -35,6 +35,8 @@ import net.nurik.roman.muzei.R
 
 object EffectsLockScreenOpenLiveData : MutableLiveData<Boolean>()
 
+object EffectsScreenOpenLiveData : MutableLiveData<Boolean>()
+
 /**
  * Fragment for allowing the user to configure advanced settings.
  */
@@ -181,6 +183,7 @@ class EffectsFragment : Fragment() {
         })
         Prefs.getSharedPreferences(requireContext())
                 .registerOnSharedPreferenceChangeListener(sharedPreferencesListener)
+        EffectsScreenOpenLiveData.value = true
     }
 
     private fun updateLinkEffectsMenuItem(
@@ -202,6 +205,7 @@ class EffectsFragment : Fragment() {
         Prefs.getSharedPreferences(requireContext())
                 .unregisterOnSharedPreferenceChangeListener(sharedPreferencesListener)
         EffectsLockScreenOpenLiveData.value = false
+        EffectsScreenOpenLiveData.value = false
         super.onDestroyView()
     }
 
@@ -41,6 +41,12 @@ class EffectsScreenFragment : Fragment() {
         private const val PREF_DIM = "pref_dim"
         private const val PREF_GREY = "pref_grey"
 
+        /**
+         * Delay before persisting a slider change. Renderers apply changes quickly while
+         * the effects screen is open, so keep this short for near real time feedback.
+         */
+        private const val UPDATE_DELAY_MILLIS = 100
+
         internal fun create(
                 prefBlur: String,
                 prefDim: String,
@@ -97,7 +103,7 @@ class EffectsScreenFragment : Fragment() {
                 if (fromUser) {
                     updateBlur?.cancel()
                     updateBlur = launch {
-                        delay(750)
+                        delay(UPDATE_DELAY_MILLIS)
                         prefs.edit {
                             putInt(blurPref, blurSeekBar.progress)
                         }
@@ -122,7 +128,7 @@ class EffectsScreenFragment : Fragment() {
                 if (fromUser) {
                     updateDim?.cancel()
                     updateDim = launch {
-                        delay(750)
+                        delay(UPDATE_DELAY_MILLIS)
                         prefs.edit {
                             putInt(dimPref, dimSeekBar.progress)
                         }
@@ -147,7 +153,7 @@ class EffectsScreenFragment : Fragment() {
                 if (fromUser) {
                     updateGrey?.cancel()
                     updateGrey = launch {
-                        delay(750)
+                        delay(UPDATE_DELAY_MILLIS)
                         prefs.edit {
                             putInt(greyPref, greySeekBar.progress)
                         }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.wearable
+
+import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.gms.wearable.MessageEvent
+import com.google.android.gms.wearable.WearableListenerService
+import kotlinx.coroutines.experimental.runBlocking
+
+/**
+ * WearableListenerService uploading the current artwork when a watch requests it
+ */
+class ArtworkRequestListenerService : WearableListenerService() {
+    override fun onMessageReceived(messageEvent: MessageEvent?) {
+        // Only artwork/request messages trigger this WearableListenerService
+        runBlocking {
+            val artwork = MuzeiDatabase.getInstance(this@ArtworkRequestListenerService)
+                    .artworkDao().getCurrentArtwork() ?: return@runBlocking
+            // The watch only requests artwork when it is about to show it
+            WearableController.uploadArtwork(this@ArtworkRequestListenerService, artwork,
+                    urgent = true)
+        }
+    }
+}
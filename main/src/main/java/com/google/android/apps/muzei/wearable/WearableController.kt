@@ -20,8 +20,13 @@ import android.arch.lifecycle.DefaultLifecycleObserver
 import android.arch.lifecycle.LifecycleOwner
 import android.content.Context
 import android.graphics.Bitmap
+import android.net.Uri
+import android.preference.PreferenceManager
+import android.util.Base64
 import android.util.Log
-import com.google.android.apps.muzei.render.ImageLoader
+import androidx.core.content.edit
+import com.google.android.apps.muzei.render.ArtworkBitmapCache
+import com.google.android.apps.muzei.render.scaleToMinSize
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.util.observeNonNull
@@ -30,22 +35,137 @@ import com.google.android.gms.common.GoogleApiAvailability
 import com.google.android.gms.common.api.AvailabilityException
 import com.google.android.gms.tasks.Tasks
 import com.google.android.gms.wearable.Asset
+import com.google.android.gms.wearable.CapabilityClient
+import com.google.android.gms.wearable.CapabilityInfo
+import com.google.android.gms.wearable.DataClient
 import com.google.android.gms.wearable.DataItem
+import com.google.android.gms.wearable.DataMapItem
 import com.google.android.gms.wearable.PutDataMapRequest
 import com.google.android.gms.wearable.Wearable
 import kotlinx.coroutines.experimental.launch
 import java.io.ByteArrayOutputStream
+import java.security.MessageDigest
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 
 /**
  * Controller for updating Android Wear devices with new wallpapers.
+ *
+ * Every artwork change publishes a small [ARTWORK_MARKER_PATH] DataItem. The artwork itself
+ * is only uploaded right away if a watch that doesn't support [PULL_ARTWORK_CAPABILITY] is
+ * connected or the Muzei watch face is visible; otherwise watches request it with
+ * [ARTWORK_REQUEST_PATH] (handled by [ArtworkRequestListenerService]) once they need it.
  */
 class WearableController(private val context: Context) : DefaultLifecycleObserver {
 
     companion object {
         private const val TAG = "WearableController"
+        private const val PREF_LAST_SENT_KEY = "wearable_last_sent_artwork_key"
+        private const val PREF_LAST_SENT_HASH = "wearable_last_sent_artwork_hash"
+        // Size sent to watches that don't publish their screen size
+        private const val DEFAULT_SCREEN_SIZE = 320
+        private const val IMAGE_QUALITY = 85
+
+        /**
+         * Uploads the [artwork] to the [ARTWORK_PATH] DataItem, sized for the watches'
+         * screens, unless the same artwork was already uploaded.
+         */
+        internal suspend fun uploadArtwork(context: Context, artwork: Artwork, urgent: Boolean) {
+            val dataClient = Wearable.getDataClient(context)
+            val screenSize = try {
+                getWatchScreenSize(context, dataClient)
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "Unable to get the connected watches", e)
+                null
+            } catch (e: InterruptedException) {
+                Log.w(TAG, "Unable to get the connected watches", e)
+                null
+            }
+            if (screenSize == null) {
+                // No watch to send the artwork to
+                return
+            }
+
+            // Compare a cheap key of what would be sent before decoding and encoding the
+            // image, so that repeated uploads of the same artwork cost almost nothing
+            val artworkDataMap = artwork.toDataMap()
+            val key = MessageDigest.getInstance("SHA-1").run {
+                update(artworkDataMap.toByteArray())
+                update("${artwork.id}:$screenSize".toByteArray())
+                Base64.encodeToString(digest(), Base64.NO_WRAP)
+            }
+            val preferences = PreferenceManager.getDefaultSharedPreferences(context)
+            if (key == preferences.getString(PREF_LAST_SENT_KEY, null)) {
+                // The watches already have this artwork at this size
+                return
+            }
+
+            val image: Bitmap = ArtworkBitmapCache.get(context, artwork, screenSize)
+                    ?.scaleToMinSize(screenSize) ?: return
+
+            val byteStream = ByteArrayOutputStream()
+            image.compress(Bitmap.CompressFormat.WEBP, IMAGE_QUALITY, byteStream)
+            val imageBytes = byteStream.toByteArray()
+            val hash = MessageDigest.getInstance("SHA-1").run {
+                update(imageBytes)
+                update(artworkDataMap.toByteArray())
+                update(artwork.id.toString().toByteArray())
+                Base64.encodeToString(digest(), Base64.NO_WRAP)
+            }
+            if (hash == preferences.getString(PREF_LAST_SENT_HASH, null)) {
+                // The watches already have this artwork, e.g. it was too small to be
+                // scaled differently for a new screen size
+                preferences.edit {
+                    putString(PREF_LAST_SENT_KEY, key)
+                }
+                return
+            }
+            val dataMapRequest = PutDataMapRequest.create(ARTWORK_PATH).apply {
+                dataMap.putLong(KEY_ARTWORK_ID, artwork.id)
+                dataMap.putDataMap("artwork", artworkDataMap)
+                dataMap.putAsset("image", Asset.createFromBytes(imageBytes))
+            }
+            try {
+                val request = dataMapRequest.asPutDataRequest()
+                if (urgent) {
+                    request.setUrgent()
+                }
+                Tasks.await<DataItem>(dataClient.putDataItem(request))
+                preferences.edit {
+                    putString(PREF_LAST_SENT_KEY, key)
+                    putString(PREF_LAST_SENT_HASH, hash)
+                }
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "Error uploading artwork to Wear", e)
+            } catch (e: InterruptedException) {
+                Log.w(TAG, "Error uploading artwork to Wear", e)
+            }
+        }
+
+        /**
+         * Returns the size the artwork should be sent at: the largest screen dimension of
+         * the watches that published their [WATCH_INFO_PATH] or [DEFAULT_SCREEN_SIZE] if
+         * none did, or null if there are no watches to send artwork to.
+         */
+        @Throws(ExecutionException::class, InterruptedException::class)
+        private fun getWatchScreenSize(context: Context, dataClient: DataClient): Int? {
+            val dataItemBuffer = Tasks.await(dataClient.getDataItems(
+                    Uri.parse("wear://*$WATCH_INFO_PATH")))
+            val screenSize = try {
+                dataItemBuffer.map { DataMapItem.fromDataItem(it).dataMap }.map { dataMap ->
+                    Math.max(dataMap.getInt(KEY_SCREEN_WIDTH), dataMap.getInt(KEY_SCREEN_HEIGHT))
+                }.max()
+            } finally {
+                dataItemBuffer.release()
+            }
+            if (screenSize != null && screenSize > 0) {
+                return screenSize
+            }
+            // Watches that don't publish their screen size still need artwork if connected
+            val connectedNodes = Tasks.await(Wearable.getNodeClient(context).connectedNodes)
+            return if (connectedNodes.isNotEmpty()) DEFAULT_SCREEN_SIZE else null
+        }
     }
 
     override fun onCreate(owner: LifecycleOwner) {
@@ -85,23 +205,56 @@ class WearableController(private val context: Context) : DefaultLifecycleObserve
             return
         }
 
-        val image: Bitmap = ImageLoader.decode(
-                context.contentResolver, artwork.contentUri,
-                320) ?: return
-
-        val byteStream = ByteArrayOutputStream()
-        image.compress(Bitmap.CompressFormat.PNG, 100, byteStream)
-        val asset = Asset.createFromBytes(byteStream.toByteArray())
-        val dataMapRequest = PutDataMapRequest.create("/artwork").apply {
-            dataMap.putDataMap("artwork", artwork.toDataMap())
-            dataMap.putAsset("image", asset)
+        val markerRequest = PutDataMapRequest.create(ARTWORK_MARKER_PATH).apply {
+            dataMap.putLong(KEY_ARTWORK_ID, artwork.id)
         }
         try {
-            Tasks.await<DataItem>(dataClient.putDataItem(dataMapRequest.asPutDataRequest().setUrgent()))
+            Tasks.await<DataItem>(dataClient.putDataItem(markerRequest.asPutDataRequest()))
         } catch (e: ExecutionException) {
-            Log.w(TAG, "Error uploading artwork to Wear", e)
+            Log.w(TAG, "Error publishing artwork marker to Wear", e)
+            return
         } catch (e: InterruptedException) {
-            Log.w(TAG, "Error uploading artwork to Wear", e)
+            Log.w(TAG, "Error publishing artwork marker to Wear", e)
+            return
+        }
+
+        val watchFaceVisible = isWatchFaceVisible()
+        if (watchFaceVisible || !allWatchesPullArtwork()) {
+            uploadArtwork(context, artwork, urgent = watchFaceVisible)
         }
     }
+
+    /**
+     * Returns whether a reachable watch is currently showing the Muzei watch face, in which
+     * case new artwork should be delivered right away rather than batched.
+     */
+    private fun isWatchFaceVisible() = try {
+        Tasks.await<CapabilityInfo>(Wearable.getCapabilityClient(context).getCapability(
+                WATCH_FACE_VISIBLE_CAPABILITY, CapabilityClient.FILTER_REACHABLE))
+                .nodes.isNotEmpty()
+    } catch (e: ExecutionException) {
+        Log.w(TAG, "Error getting watch face capability info", e)
+        false
+    } catch (e: InterruptedException) {
+        Log.w(TAG, "Error getting watch face capability info", e)
+        false
+    }
+
+    /**
+     * Returns whether there are watches with [PULL_ARTWORK_CAPABILITY] and every connected
+     * watch has it, in which case the artwork only needs to be uploaded when requested.
+     */
+    private fun allWatchesPullArtwork() = try {
+        val pullNodeIds = Tasks.await<CapabilityInfo>(Wearable.getCapabilityClient(context)
+                .getCapability(PULL_ARTWORK_CAPABILITY, CapabilityClient.FILTER_ALL))
+                .nodes.map { it.id }.toSet()
+        val connectedNodes = Tasks.await(Wearable.getNodeClient(context).connectedNodes)
+        pullNodeIds.isNotEmpty() && connectedNodes.all { it.id in pullNodeIds }
+    } catch (e: ExecutionException) {
+        Log.w(TAG, "Error getting pull artwork capability info", e)
+        false
+    } catch (e: InterruptedException) {
+        Log.w(TAG, "Error getting pull artwork capability info", e)
+        false
+    }
 }
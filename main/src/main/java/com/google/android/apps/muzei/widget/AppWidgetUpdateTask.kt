@@ -30,13 +30,17 @@ import android.util.TypedValue
 import android.view.View
 import android.widget.RemoteViews
 import androidx.core.os.bundleOf
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.render.ArtworkBitmapCache
+import com.google.android.apps.muzei.render.DecodePlanner
+import com.google.android.apps.muzei.render.RENDITION_CONFIG
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.Provider
 import com.google.android.apps.muzei.sources.allowsNextArtwork
 import com.google.android.apps.muzei.wallpaper.WallpaperActiveState
+import kotlinx.coroutines.experimental.CommonPool
 import kotlinx.coroutines.experimental.launch
+import kotlinx.coroutines.experimental.withContext
 import net.nurik.roman.muzei.R
 
 private const val TAG = "updateAppWidget"
@@ -90,42 +94,101 @@ suspend fun updateAppWidget(context: Context) {
     val displayMetrics = context.resources.displayMetrics
     val minWidgetSize = context.resources.getDimensionPixelSize(
             R.dimen.widget_min_size)
+    // Widgets that would show the same bitmap with the same layout share a single
+    // rendition, which is rendered once and sent to all of them in one update
+    val renditions = LinkedHashMap<WidgetRendition, MutableList<Int>>()
     for (widgetId in appWidgetIds) {
-        launch {
-            val extras = appWidgetManager.getAppWidgetOptions(widgetId)
-            var widgetWidth = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                    extras.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH).toFloat(), displayMetrics).toInt()
-            widgetWidth = Math.max(Math.min(widgetWidth, displayMetrics.widthPixels), minWidgetSize)
-            var widgetHeight = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                    extras.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT).toFloat(), displayMetrics).toInt()
-            widgetHeight = Math.max(Math.min(widgetHeight, displayMetrics.heightPixels), minWidgetSize)
-            var success = false
-            while (!success) {
-                val remoteViews = createRemoteViews(context, provider, artwork,
-                        widgetWidth, widgetHeight)
-                        ?: return@launch
-                try {
-                    appWidgetManager.updateAppWidget(widgetId, remoteViews)
-                    success = true
-                } catch (e: IllegalArgumentException) {
-                    Log.w(TAG, "App widget size $widgetWidth x $widgetHeight exceeded maximum memory, reducing quality")
-                    widgetWidth /= 2
-                    widgetHeight /= 2
-                }
+        val extras = appWidgetManager.getAppWidgetOptions(widgetId)
+        var widgetWidth = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                extras.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH).toFloat(), displayMetrics).toInt()
+        widgetWidth = Math.max(Math.min(widgetWidth, displayMetrics.widthPixels), minWidgetSize)
+        var widgetHeight = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                extras.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT).toFloat(), displayMetrics).toInt()
+        widgetHeight = Math.max(Math.min(widgetHeight, displayMetrics.heightPixels), minWidgetSize)
+        val rendition = planRendition(context, artwork, widgetWidth, widgetHeight) ?: continue
+        renditions.getOrPut(rendition) { mutableListOf() } += widgetId
+    }
+    for ((plannedRendition, widgetIds) in renditions) {
+        var rendition = plannedRendition
+        var success = false
+        while (!success) {
+            val remoteViews = createRemoteViews(context, provider, artwork, rendition)
+                    ?: break
+            try {
+                appWidgetManager.updateAppWidget(widgetIds.toIntArray(), remoteViews)
+                success = true
+            } catch (e: IllegalArgumentException) {
+                Log.w(TAG, "App widget rendition ${rendition.width} x ${rendition.height} " +
+                        "exceeded maximum memory, reducing quality")
+                rendition = rendition.copy(width = rendition.width / 2,
+                        height = rendition.height / 2)
             }
         }
     }
 }
 
+/**
+ * What an app widget shows. Widgets with equal renditions get identical RemoteViews.
+ *
+ * @property image the decoded artwork, shared through [ArtworkBitmapCache] by all widgets
+ * of a similar size
+ * @property width the width to scale the [image] to, planned to stay within the maximum
+ * bitmap memory usage for widgets
+ * @property height the height to scale the [image] to
+ * @property layout the widget layout
+ */
+private data class WidgetRendition(
+        val image: Bitmap,
+        val width: Int,
+        val height: Int,
+        @LayoutRes val layout: Int
+)
+
+private suspend fun planRendition(
+        context: Context,
+        artwork: Artwork,
+        widgetWidth: Int,
+        widgetHeight: Int
+): WidgetRendition? {
+    val targetWidth = Math.max(1, widgetWidth / 2)
+    val targetHeight = Math.max(1, widgetHeight / 2)
+    val image = ArtworkBitmapCache.get(context, artwork, targetWidth, targetHeight,
+            RENDITION_CONFIG) ?: return null
+    // Plan the image up front so that it stays within the maximum bitmap memory
+    // usage for widgets
+    val displayMetrics = context.resources.displayMetrics
+    val plan = DecodePlanner.planWidget(
+            displayMetrics.widthPixels, displayMetrics.heightPixels,
+            widgetWidth, widgetHeight, image.width, image.height)
+    val smallWidgetHeight = context.resources.getDimensionPixelSize(
+            R.dimen.widget_small_height_breakpoint)
+    @LayoutRes val widgetLayout = if (widgetHeight < smallWidgetHeight)
+        R.layout.widget_small
+    else
+        R.layout.widget
+    // The image is already decoded, so only the size to scale it to matters
+    return WidgetRendition(image, plan.width, plan.height, widgetLayout)
+}
+
 private suspend fun createRemoteViews(
         context: Context,
         provider: Provider,
         artwork: Artwork,
         widgetWidth: Int,
         widgetHeight: Int
+): RemoteViews? {
+    val rendition = planRendition(context, artwork, widgetWidth, widgetHeight)
+            ?: return null
+    return createRemoteViews(context, provider, artwork, rendition)
+}
+
+private suspend fun createRemoteViews(
+        context: Context,
+        provider: Provider,
+        artwork: Artwork,
+        rendition: WidgetRendition
 ): RemoteViews? {
     val contentDescription = artwork.title ?: artwork.byline ?: ""
-    val imageUri = artwork.contentUri
     val supportsNextArtwork = WallpaperActiveState.value == true &&
             provider.allowsNextArtwork(context)
 
@@ -138,20 +201,10 @@ private suspend fun createRemoteViews(
     }
     val nextArtworkPendingIntent = PendingIntent.getBroadcast(context,
             0, nextArtworkIntent, PendingIntent.FLAG_UPDATE_CURRENT)
-    val smallWidgetHeight = context.resources.getDimensionPixelSize(
-            R.dimen.widget_small_height_breakpoint)
-    val image = ImageLoader.decode(
-            context.contentResolver, imageUri,
-            widgetWidth / 2, widgetHeight / 2) ?: return null
-
-    // Even after using sample size to scale an image down, it might be larger than the
-    // maximum bitmap memory usage for widgets
-    val scaledImage = image.scale(widgetWidth, widgetHeight)
-    @LayoutRes val widgetLayout = if (widgetHeight < smallWidgetHeight)
-        R.layout.widget_small
-    else
-        R.layout.widget
-    val remoteViews = RemoteViews(context.packageName, widgetLayout)
+    val scaledImage = withContext(CommonPool) {
+        rendition.image.scale(rendition.width, rendition.height)
+    } ?: return null
+    val remoteViews = RemoteViews(context.packageName, rendition.layout)
     remoteViews.setContentDescription(R.id.widget_background, contentDescription)
     remoteViews.setImageViewBitmap(R.id.widget_background, scaledImage)
     remoteViews.setOnClickPendingIntent(R.id.widget_background, launchPendingIntent)
@@ -164,31 +217,9 @@ private suspend fun createRemoteViews(
     return remoteViews
 }
 
-private fun Bitmap.scale(widgetWidth: Int, widgetHeight: Int): Bitmap? {
-    if (width == 0 || height == 0 ||
-            widgetWidth == 0 || widgetHeight == 0) {
+private fun Bitmap.scale(scaledWidth: Int, scaledHeight: Int): Bitmap? {
+    if (width == 0 || height == 0 || scaledWidth == 0 || scaledHeight == 0) {
         return null
     }
-    val largestDimension = Math.max(widgetWidth, widgetHeight)
-    var width = width
-    var height = height
-    when {
-        width > height -> {
-            // landscape
-            val ratio = width.toFloat() / largestDimension
-            width = largestDimension
-            height = (height / ratio).toInt()
-        }
-        height > width -> {
-            // portrait
-            val ratio = height.toFloat() / largestDimension
-            height = largestDimension
-            width = (width / ratio).toInt()
-        }
-        else -> {
-            height = largestDimension
-            width = largestDimension
-        }
-    }
-    return Bitmap.createScaledBitmap(this, width, height, true)
+    return Bitmap.createScaledBitmap(this, scaledWidth, scaledHeight, true)
 }
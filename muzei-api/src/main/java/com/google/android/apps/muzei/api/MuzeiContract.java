@@ -35,6 +35,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
@@ -90,7 +92,8 @@ public class MuzeiContract {
      * {@link #getCurrentArtworkBitmap(Context)} does this operation, although note
      * that this may return a very large Bitmap so following the
      * <a href="http://developer.android.com/training/displaying-bitmaps/index.html">Displaying Bitmaps Efficiently training</a>
-     * advice is highly suggested.
+     * advice is highly suggested. {@link #getCurrentArtworkBitmap(Context, int, int)} does
+     * this for you by subsampling the image to the size you need.
      *
      * <h3>Listening for changes</h3>
      *
@@ -263,6 +266,7 @@ public class MuzeiContract {
          * @return A Bitmap of the current artwork or null if the image could not be decoded.
          *
          * @throws FileNotFoundException If no cached artwork image was found.
+         * @see #getCurrentArtworkBitmap(Context, int, int)
          */
         @WorkerThread
         public static Bitmap getCurrentArtworkBitmap(Context context) throws FileNotFoundException {
@@ -272,6 +276,90 @@ public class MuzeiContract {
             ContentResolver contentResolver = context.getContentResolver();
             return BitmapFactory.decodeStream(contentResolver.openInputStream(CONTENT_URI));
         }
+
+        /**
+         * Gets the current artwork image, subsampled while decoding so that it is as small as
+         * possible while still being at least {@code targetWidth} by {@code targetHeight} pixels
+         * (or the full image if it is smaller than that). As subsampling works in powers of 2,
+         * the returned Bitmap can be up to twice as large as requested in each dimension, so
+         * you may still want to scale it to your exact output size.
+         * <p>This only reads the full image from disk without allocating memory for it, making
+         * it suitable for watch faces, widgets and other places where the artwork is shown much
+         * smaller than its original size.
+         *
+         * @param context the context to retrieve a ContentResolver.
+         * @param targetWidth the minimum width of the returned Bitmap, in pixels.
+         * @param targetHeight the minimum height of the returned Bitmap, in pixels.
+         *
+         * @return A Bitmap of the current artwork or null if the image could not be decoded.
+         *
+         * @throws FileNotFoundException If no cached artwork image was found.
+         * @see #getCurrentArtworkBitmap(Context, int, int, Bitmap.Config)
+         */
+        @WorkerThread
+        public static Bitmap getCurrentArtworkBitmap(Context context,
+                int targetWidth, int targetHeight) throws FileNotFoundException {
+            return getCurrentArtworkBitmap(context, targetWidth, targetHeight,
+                    Bitmap.Config.ARGB_8888);
+        }
+
+        /**
+         * Gets the current artwork image in the given {@link Bitmap.Config}, subsampled while
+         * decoding so that it is as small as possible while still being at least
+         * {@code targetWidth} by {@code targetHeight} pixels. Using
+         * {@link Bitmap.Config#RGB_565} halves the memory used by the returned Bitmap.
+         *
+         * @param context the context to retrieve a ContentResolver.
+         * @param targetWidth the minimum width of the returned Bitmap, in pixels.
+         * @param targetHeight the minimum height of the returned Bitmap, in pixels.
+         * @param config the preferred config of the returned Bitmap.
+         *
+         * @return A Bitmap of the current artwork or null if the image could not be decoded.
+         *
+         * @throws FileNotFoundException If no cached artwork image was found.
+         * @see #getCurrentArtworkBitmap(Context, int, int)
+         */
+        @WorkerThread
+        public static Bitmap getCurrentArtworkBitmap(Context context,
+                int targetWidth, int targetHeight,
+                @NonNull Bitmap.Config config) throws FileNotFoundException {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                throw new IllegalStateException("getCurrentArtworkBitmap cannot be called on the main thread");
+            }
+            if (targetWidth <= 0 || targetHeight <= 0) {
+                throw new IllegalArgumentException("Target size must be positive, was "
+                        + targetWidth + "x" + targetHeight);
+            }
+            ContentResolver contentResolver = context.getContentResolver();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(contentResolver.openInputStream(CONTENT_URI), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= targetWidth
+                    && options.outHeight / (sampleSize * 2) >= targetHeight) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            return decodeStream(contentResolver.openInputStream(CONTENT_URI), options);
+        }
+
+        private static Bitmap decodeStream(InputStream in, BitmapFactory.Options options) {
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -372,4 +460,105 @@ public class MuzeiContract {
             return commands;
         }
     }
+
+    /**
+     * Constants and helper methods for thumbnails of artwork, providing access to small versions
+     * of artwork images without reading the full size image.
+     * <p>
+     * Thumbnails are opened with
+     * {@link ContentResolver#openInputStream(Uri) ContentResolver.openInputStream(Uri)}. They are
+     * at least as large as the requested width and height (up to 1024 pixels in either dimension),
+     * keep the aspect ratio of the artwork and are never larger than the artwork itself. Muzei
+     * creates each thumbnail once and caches it, so opening the same thumbnail again is cheap.
+     */
+    public static final class Thumbnails {
+        /**
+         * The MIME type of the images returned when opening a thumbnail.
+         */
+        public static final String CONTENT_TYPE = "image/webp";
+        /**
+         * The table name offered by this provider.
+         */
+        public static final String TABLE_NAME = "thumbnails";
+        /**
+         * Query parameter for the minimum width of the thumbnail, in pixels.
+         */
+        public static final String QUERY_PARAMETER_WIDTH = "width";
+        /**
+         * Query parameter for the minimum height of the thumbnail, in pixels.
+         */
+        public static final String QUERY_PARAMETER_HEIGHT = "height";
+        /**
+         * Query parameter for the image to create a thumbnail of, rather than the current
+         * artwork. This is only available to Muzei itself.
+         */
+        public static final String QUERY_PARAMETER_IMAGE_URI = "image_uri";
+
+        /**
+         * This class cannot be instantiated
+         */
+        private Thumbnails() {
+        }
+
+        /**
+         * The content:// style URL for thumbnails of the current artwork. Append a
+         * {@link Artwork#_ID} to get thumbnails of a specific piece of artwork.
+         */
+        public static final Uri CONTENT_URI = Uri.parse(MuzeiContract.SCHEME + MuzeiContract.AUTHORITY
+                + "/" + Thumbnails.TABLE_NAME);
+
+        /**
+         * Gets the URI of a thumbnail of the current artwork.
+         *
+         * @param width the minimum width of the thumbnail, in pixels.
+         * @param height the minimum height of the thumbnail, in pixels.
+         *
+         * @return A URI that can be opened with
+         * {@link ContentResolver#openInputStream(Uri) ContentResolver.openInputStream(Uri)}.
+         */
+        @NonNull
+        public static Uri getContentUri(int width, int height) {
+            return appendSize(CONTENT_URI.buildUpon(), width, height).build();
+        }
+
+        /**
+         * Gets the URI of a thumbnail of the artwork with the given {@link Artwork#_ID}.
+         *
+         * @param artworkId the {@link Artwork#_ID} of the artwork.
+         * @param width the minimum width of the thumbnail, in pixels.
+         * @param height the minimum height of the thumbnail, in pixels.
+         *
+         * @return A URI that can be opened with
+         * {@link ContentResolver#openInputStream(Uri) ContentResolver.openInputStream(Uri)}.
+         */
+        @NonNull
+        public static Uri getContentUri(long artworkId, int width, int height) {
+            return appendSize(CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(artworkId)), width, height).build();
+        }
+
+        /**
+         * Gets the URI of a thumbnail of the image at the given URI. This is only available to
+         * Muzei itself; other apps opening the returned URI get a {@link SecurityException}.
+         *
+         * @param imageUri the URI of the image.
+         * @param width the minimum width of the thumbnail, in pixels.
+         * @param height the minimum height of the thumbnail, in pixels.
+         *
+         * @return A URI that can be opened with
+         * {@link ContentResolver#openInputStream(Uri) ContentResolver.openInputStream(Uri)}.
+         */
+        @NonNull
+        public static Uri getContentUri(@NonNull Uri imageUri, int width, int height) {
+            return appendSize(CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_IMAGE_URI, imageUri.toString()),
+                    width, height).build();
+        }
+
+        private static Uri.Builder appendSize(Uri.Builder builder, int width, int height) {
+            return builder
+                    .appendQueryParameter(QUERY_PARAMETER_WIDTH, Integer.toString(width))
+                    .appendQueryParameter(QUERY_PARAMETER_HEIGHT, Integer.toString(height));
+        }
+    }
 }
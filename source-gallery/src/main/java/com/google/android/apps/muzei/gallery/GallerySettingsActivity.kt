@@ -69,6 +69,7 @@ import android.widget.ViewAnimator
 import androidx.core.content.edit
 import androidx.core.database.getStringOrNull
 import androidx.core.widget.toast
+import com.google.android.apps.muzei.api.MuzeiContract
 import com.google.android.apps.muzei.util.MultiSelectionController
 import com.google.android.apps.muzei.util.observe
 import com.squareup.picasso.Picasso
@@ -658,7 +659,8 @@ class GallerySettingsActivity : AppCompatActivity(), Observer<PagedList<ChosenPh
                 val thumbView = vh.thumbViews[h]
                 thumbView.visibility = View.VISIBLE
                 Picasso.get()
-                        .load(images[h])
+                        .load(MuzeiContract.Thumbnails.getContentUri(images[h],
+                                targetSize, targetSize))
                         .resize(targetSize, targetSize)
                         .centerCrop()
                         .placeholder(placeholderDrawable)
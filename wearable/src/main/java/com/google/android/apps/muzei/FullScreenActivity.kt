@@ -26,9 +26,11 @@ import android.view.GestureDetector
 import android.view.MotionEvent
 import android.view.View
 import android.widget.TextView
+import androidx.core.view.doOnLayout
 import androidx.core.view.isVisible
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.render.ScaledArtworkCache
 import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.util.ImageBlurrer
 import com.google.android.apps.muzei.util.PanView
 import com.google.android.apps.muzei.util.observeNonNull
 import com.google.firebase.analytics.FirebaseAnalytics
@@ -105,15 +107,23 @@ class FullScreenActivity : FragmentActivity() {
         })
         MuzeiDatabase.getInstance(this).artworkDao()
                 .currentArtwork.observeNonNull(this) { artwork ->
-            launch(UI) {
-                val image = ImageLoader.decode(
-                        contentResolver, artwork.contentUri)
-                showLoadingIndicator?.cancel()
-                loadingIndicatorView.isVisible = false
-                panView.isVisible = true
-                panView.setImage(image)
-                titleView.text = artwork.title
-                bylineView.text = artwork.byline
+            // Wait for the PanView to be laid out to load the artwork at its size
+            panView.doOnLayout {
+                launch(UI) {
+                    val width = panView.width
+                    val height = panView.height
+                    val image = ScaledArtworkCache.get(this@FullScreenActivity,
+                            artwork, width, height)
+                    val blurredImage = ScaledArtworkCache.getBlurred(this@FullScreenActivity,
+                            artwork, width, height,
+                            ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS.toFloat())
+                    showLoadingIndicator?.cancel()
+                    loadingIndicatorView.isVisible = false
+                    panView.isVisible = true
+                    panView.setImage(image, blurredImage)
+                    titleView.text = artwork.title
+                    bylineView.text = artwork.byline
+                }
             }
         }
     }
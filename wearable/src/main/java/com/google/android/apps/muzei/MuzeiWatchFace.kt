@@ -22,6 +22,7 @@ import android.arch.lifecycle.LifecycleOwner
 import android.arch.lifecycle.LifecycleRegistry
 import android.arch.lifecycle.Observer
 import android.content.BroadcastReceiver
+import android.content.ComponentCallbacks2
 import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
@@ -53,7 +54,12 @@ import android.view.SurfaceHolder
 import androidx.core.content.edit
 import com.google.android.apps.muzei.complications.ArtworkComplicationProviderService
 import com.google.android.apps.muzei.datalayer.DataLayerArtProvider
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.datalayer.DataLayerLoadWorker
+import com.google.android.apps.muzei.datalayer.publishWatchInfo
+import com.google.android.apps.muzei.datalayer.setWatchFaceVisible
+import com.google.android.apps.muzei.render.ArtworkBitmapCache
+import com.google.android.apps.muzei.render.ScaledArtworkCache
+import com.google.android.apps.muzei.render.scaleToCover
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.select
@@ -65,7 +71,6 @@ import com.google.firebase.analytics.FirebaseAnalytics
 import kotlinx.coroutines.experimental.launch
 import net.nurik.roman.muzei.BuildConfig
 import net.nurik.roman.muzei.R
-import java.io.FileNotFoundException
 import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.Calendar
@@ -95,6 +100,7 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
          * Update rate in milliseconds.
          */
         private val UPDATE_RATE_MS = TimeUnit.MINUTES.toMillis(1)
+        private const val BLUR_RADIUS = ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS / 2f
         internal const val MSG_UPDATE_TIME = 0
     }
 
@@ -108,6 +114,7 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
         super.onCreate()
         lifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_CREATE)
         FirebaseAnalytics.getInstance(this).setUserProperty("device_type", BuildConfig.DEVICE_TYPE)
+        publishWatchInfo(this)
         ProviderManager.getInstance(this).observe(this) { provider ->
             if (provider == null) {
                 launch {
@@ -121,6 +128,14 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
         return Engine()
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            ScaledArtworkCache.evictAll()
+            ArtworkBitmapCache.evictAll()
+        }
+    }
+
     override fun onDestroy() {
         lifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY)
         super.onDestroy()
@@ -193,9 +208,10 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
                 }
             }
         }
+        @Volatile
+        internal var currentArtwork: Artwork? = null
         internal var backgroundScaledBlurredBitmap: Bitmap? = null
         internal var backgroundScaledBitmap: Bitmap? = null
-        internal var backgroundBitmap: Bitmap? = null
         internal val clockMargin: Float by lazy {
             resources.getDimension(R.dimen.clock_margin)
         }
@@ -223,31 +239,8 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Artwork = ${artwork?.contentUri}")
                 }
-                launch {
-                    val bitmap: Bitmap? = try {
-                        artwork?.run {
-                            ImageLoader.decode(contentResolver, contentUri)
-                        }
-                    } catch (e: FileNotFoundException) {
-                        Log.w(TAG, "Could not find current artwork image", e)
-                        null
-                    } ?: run {
-                        // We'll get another callback when the real artwork is loaded, but
-                        // we should show something to the users right away
-                        try {
-                            BitmapFactory.decodeStream(assets.open("starrynight.jpg"))
-                        } catch (e: IOException) {
-                            Log.e(TAG, "Error opening starry night asset", e)
-                            null
-                        }
-                    }
-
-                    if (bitmap != null && !bitmap.sameAs(backgroundBitmap)) {
-                        backgroundBitmap = bitmap
-                        createScaledBitmap()
-                        postInvalidate()
-                    }
-                }
+                currentArtwork = artwork
+                createScaledBitmap()
             }
         }
 
@@ -373,6 +366,7 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
 
         override fun onDestroy() {
             FirebaseAnalytics.getInstance(this@MuzeiWatchFace).logEvent("watchface_destroyed", null)
+            setWatchFaceVisible(this@MuzeiWatchFace, false)
             updateTimeHandler.removeMessages(MSG_UPDATE_TIME)
             super.onDestroy()
         }
@@ -385,28 +379,41 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
         }
 
         private fun createScaledBitmap() {
-            if (currentWidth == 0 || currentHeight == 0) {
+            val width = currentWidth
+            val height = currentHeight
+            if (width == 0 || height == 0) {
                 // Wait for the surface to be created
                 return
             }
-            val background = backgroundBitmap ?: return
-            backgroundScaledBitmap = if (background.width > background.height) {
-                val scalingFactor = currentHeight * 1f / background.height
-                Bitmap.createScaledBitmap(
-                        background,
-                        (scalingFactor * background.width).toInt(),
-                        currentHeight,
-                        true /* filter */)
-            } else {
-                val scalingFactor = currentWidth * 1f / background.width
-                Bitmap.createScaledBitmap(
-                        background,
-                        currentWidth,
-                        (scalingFactor * background.height).toInt(),
-                        true /* filter */)
-            }
-            backgroundScaledBlurredBitmap = backgroundScaledBitmap.blur(this@MuzeiWatchFace,
-                    (ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS / 2).toFloat())
+            val artwork = currentArtwork
+            launch {
+                val scaled = artwork?.let {
+                    ScaledArtworkCache.get(this@MuzeiWatchFace, it, width, height)
+                } ?: run {
+                    // We'll get another callback when the real artwork is loaded, but
+                    // we should show something to the users right away
+                    try {
+                        assets.open("starrynight.jpg").use { input ->
+                            BitmapFactory.decodeStream(input)
+                        }?.scaleToCover(width, height)
+                    } catch (e: IOException) {
+                        Log.e(TAG, "Error opening starry night asset", e)
+                        null
+                    }
+                } ?: return@launch
+                val blurred = if (artwork != null) {
+                    ScaledArtworkCache.getBlurred(this@MuzeiWatchFace, artwork, width, height,
+                            BLUR_RADIUS)
+                } else {
+                    scaled.blur(this@MuzeiWatchFace, BLUR_RADIUS)
+                }
+                if (artwork == currentArtwork && width == currentWidth &&
+                        height == currentHeight) {
+                    backgroundScaledBitmap = scaled
+                    backgroundScaledBlurredBitmap = blurred
+                    postInvalidate()
+                }
+            }
         }
 
         override fun onVisibilityChanged(visible: Boolean) {
@@ -414,8 +421,10 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "onVisibilityChanged: visible = $visible")
             }
+            setWatchFaceVisible(this@MuzeiWatchFace, visible)
             if (visible) {
                 lifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_START)
+                DataLayerLoadWorker.enqueueLoadIfPending(this@MuzeiWatchFace)
 
                 registerReceiver()
 
@@ -564,6 +573,8 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
                 backgroundScaledBlurredBitmap
             else
                 backgroundScaledBitmap
+            // Ambient mode stays black: lighting every pixel would cost battery and risk
+            // burn-in on OLED displays
             if (ambient || background == null) {
                 canvas.drawRect(0f, 0f, width.toFloat(), height.toFloat(), backgroundPaint)
             } else {
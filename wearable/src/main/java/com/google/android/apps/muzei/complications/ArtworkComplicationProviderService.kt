@@ -30,6 +30,10 @@ import android.util.Log
 import androidx.core.content.edit
 import androidx.core.os.bundleOf
 import com.google.android.apps.muzei.FullScreenActivity
+import com.google.android.apps.muzei.datalayer.DataLayerLoadWorker
+import com.google.android.apps.muzei.render.RENDITION_CONFIG
+import com.google.android.apps.muzei.render.ScaledArtworkCache
+import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.sync.ProviderChangedWorker
 import com.google.firebase.analytics.FirebaseAnalytics
@@ -47,6 +51,8 @@ class ArtworkComplicationProviderService : ComplicationProviderService() {
         private const val TAG = "ArtworkComplProvider"
 
         internal const val KEY_COMPLICATION_IDS = "complication_ids"
+        // Small images are shown at a fraction of the screen size
+        private const val SMALL_IMAGE_SCREEN_DIVISOR = 3
     }
 
     override fun onCreate() {
@@ -105,7 +111,10 @@ class ArtworkComplicationProviderService : ComplicationProviderService() {
             }
             addComplication(complicationId)
         }
+        // Fetch the phone's latest artwork now that it is being shown
+        DataLayerLoadWorker.enqueueLoadIfPending(this)
         val applicationContext = applicationContext
+        val screenSize = resources.displayMetrics.run { Math.max(widthPixels, heightPixels) }
         launch {
             val artwork = MuzeiDatabase.getInstance(this@ArtworkComplicationProviderService)
                     .artworkDao()
@@ -143,10 +152,12 @@ class ArtworkComplicationProviderService : ComplicationProviderService() {
                     }
                     ComplicationData.TYPE_SMALL_IMAGE -> {
                         setImageStyle(ComplicationData.IMAGE_STYLE_PHOTO)
-                                .setSmallImage(Icon.createWithContentUri(artwork.contentUri))
+                                .setSmallImage(createArtworkIcon(artwork,
+                                        screenSize / SMALL_IMAGE_SCREEN_DIVISOR))
                         setTapAction(tapAction)
                     }
-                    ComplicationData.TYPE_LARGE_IMAGE -> setLargeImage(Icon.createWithContentUri(artwork.contentUri))
+                    ComplicationData.TYPE_LARGE_IMAGE -> setLargeImage(
+                            createArtworkIcon(artwork, screenSize))
                 }
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Updated $complicationId")
@@ -155,4 +166,16 @@ class ArtworkComplicationProviderService : ComplicationProviderService() {
             complicationManager.updateComplicationData(complicationId, builder.build())
         }
     }
+
+    /**
+     * Creates an icon from the [artwork] scaled to cover a [size] by [size] square, shared
+     * with the other surfaces showing the artwork through [ScaledArtworkCache]. The icon
+     * falls back to the artwork's content URI if it can't be decoded.
+     */
+    private suspend fun createArtworkIcon(artwork: Artwork, size: Int): Icon {
+        val image = ScaledArtworkCache.get(this, artwork, size, size)
+                ?: return Icon.createWithContentUri(artwork.contentUri)
+        // Icons are sent to the watch face in a Binder transaction, so use a smaller copy
+        return Icon.createWithBitmap(image.copy(RENDITION_CONFIG, false) ?: image)
+    }
 }
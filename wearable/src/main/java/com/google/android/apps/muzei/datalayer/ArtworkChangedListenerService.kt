@@ -16,6 +16,8 @@
 
 package com.google.android.apps.muzei.datalayer
 
+import com.google.android.apps.muzei.wearable.ARTWORK_MARKER_PATH
+import com.google.android.apps.muzei.wearable.ARTWORK_PATH
 import com.google.android.gms.wearable.DataEventBuffer
 import com.google.android.gms.wearable.WearableListenerService
 
@@ -25,6 +27,11 @@ import com.google.android.gms.wearable.WearableListenerService
 class ArtworkChangedListenerService : WearableListenerService() {
     override fun onDataChanged(dataEvents: DataEventBuffer) {
         // Only artwork changes trigger this WearableListenerService
-        DataLayerLoadWorker.enqueueLoad()
+        val paths = dataEvents.map { it.dataItem.uri.path }
+        if (ARTWORK_PATH in paths) {
+            DataLayerLoadWorker.enqueueLoad()
+        } else if (ARTWORK_MARKER_PATH in paths) {
+            DataLayerLoadWorker.onArtworkMarkerChanged(this)
+        }
     }
 }
@@ -16,22 +16,97 @@
 
 package com.google.android.apps.muzei.datalayer
 
+import android.content.ContentUris
 import android.content.Context
+import android.provider.BaseColumns
+import android.util.Log
 import com.google.android.apps.muzei.api.provider.Artwork
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider
+import com.google.android.apps.muzei.api.provider.ProviderContract
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.InputStream
 
 /**
- * Provider handling art from a connected phone
+ * Provider handling art from a connected phone.
+ *
+ * The most recently synced artwork is kept (up to [MAX_ARTWORK_COUNT] and [MAX_SIZE_BYTES]
+ * of images) so that the watch can keep cycling through artwork while disconnected.
  */
 class DataLayerArtProvider : MuzeiArtProvider() {
 
     companion object {
-        fun getAssetFile(context: Context): File =
-                File(context.filesDir, "data_layer")
+        private const val TAG = "DataLayerArtProvider"
+        private const val MAX_ARTWORK_COUNT = 10
+        private const val MAX_SIZE_BYTES = 2 * 1024 * 1024L
+
+        /**
+         * Returns the file holding the image of the artwork with the given [token], or the
+         * single image written before artwork was kept per token if [token] is null.
+         */
+        fun getAssetFile(context: Context, token: String? = null): File = if (token == null) {
+            File(context.filesDir, "data_layer")
+        } else {
+            File(getAssetDirectory(context), token)
+        }
+
+        private fun getAssetDirectory(context: Context) =
+                File(context.filesDir, "data_layer_artwork").apply {
+                    mkdirs()
+                }
+
+        /**
+         * Deletes the least recently synced artwork until at most [MAX_ARTWORK_COUNT]
+         * remain and their images take at most [MAX_SIZE_BYTES], always keeping the most
+         * recently synced artwork. Images no longer used by any artwork are deleted too,
+         * including the single image written before artwork was kept per token.
+         */
+        fun trim(context: Context) {
+            val contentResolver = context.contentResolver
+            val contentUri = ProviderContract.Artwork.getContentUri(context,
+                    DataLayerArtProvider::class.java)
+            val keptTokens = mutableSetOf<String>()
+            var keptLegacyArtwork = false
+            var keptCount = 0
+            var keptBytes = 0L
+            contentResolver.query(contentUri,
+                    arrayOf(BaseColumns._ID, ProviderContract.Artwork.TOKEN),
+                    null, null,
+                    "${ProviderContract.Artwork.DATE_MODIFIED} DESC")?.use { data ->
+                while (data.moveToNext()) {
+                    val token = data.getString(1)
+                    val assetFile = getAssetFile(context, token)
+                    val bytes = assetFile.length()
+                    if (keptCount == 0 || (keptCount < MAX_ARTWORK_COUNT &&
+                                    keptBytes + bytes <= MAX_SIZE_BYTES)) {
+                        keptCount++
+                        keptBytes += bytes
+                        if (token != null) {
+                            keptTokens.add(token)
+                        } else {
+                            keptLegacyArtwork = true
+                        }
+                    } else {
+                        contentResolver.delete(
+                                ContentUris.withAppendedId(contentUri, data.getLong(0)),
+                                null, null)
+                        if (assetFile.exists() && !assetFile.delete()) {
+                            Log.w(TAG, "Unable to delete $assetFile")
+                        }
+                    }
+                }
+            }
+            getAssetDirectory(context).listFiles()?.filter { it.name !in keptTokens }?.forEach {
+                if (!it.delete()) {
+                    Log.w(TAG, "Unable to delete $it")
+                }
+            }
+            val legacyAssetFile = getAssetFile(context)
+            if (!keptLegacyArtwork && legacyAssetFile.exists() && !legacyAssetFile.delete()) {
+                Log.w(TAG, "Unable to delete $legacyAssetFile")
+            }
+        }
     }
 
     override fun onLoadRequested(initial: Boolean) {
@@ -43,6 +118,6 @@ class DataLayerArtProvider : MuzeiArtProvider() {
     @Throws(FileNotFoundException::class)
     override fun openFile(artwork: Artwork): InputStream {
         val context = context ?: throw FileNotFoundException()
-        return FileInputStream(getAssetFile(context))
+        return FileInputStream(getAssetFile(context, artwork.token))
     }
 }
@@ -17,18 +17,30 @@
 package com.google.android.apps.muzei.datalayer
 
 import android.content.ComponentName
+import android.content.Context
 import android.content.pm.PackageManager
 import android.net.Uri
+import android.os.RemoteException
+import android.preference.PreferenceManager
 import android.util.Log
+import androidx.core.content.edit
 import androidx.work.Data
+import androidx.work.ExistingWorkPolicy
 import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.WorkManager
 import androidx.work.Worker
 import com.google.android.apps.muzei.FullScreenActivity
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_MARK_ARTWORK_LOADED
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.complications.ArtworkComplicationProviderService
+import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.select
+import com.google.android.apps.muzei.util.ContentProviderClientCompat
+import com.google.android.apps.muzei.wearable.ARTWORK_MARKER_PATH
+import com.google.android.apps.muzei.wearable.ARTWORK_PATH
+import com.google.android.apps.muzei.wearable.ARTWORK_REQUEST_PATH
+import com.google.android.apps.muzei.wearable.KEY_ARTWORK_ID
 import com.google.android.apps.muzei.wearable.toArtwork
 import com.google.android.gms.tasks.Tasks
 import com.google.android.gms.wearable.DataClient
@@ -43,12 +55,17 @@ import kotlin.reflect.KClass
 
 /**
  * Load artwork from the Wear Data Layer, writing it into [DataLayerArtProvider].
+ *
+ * If the phone only published an [ARTWORK_MARKER_PATH] for its current artwork, the artwork
+ * is requested with [ARTWORK_REQUEST_PATH] and loaded once the phone uploads it.
  */
 class DataLayerLoadWorker : Worker() {
 
     companion object {
         private const val TAG = "DataLayerLoadJobService"
         private const val SHOW_ACTIVATE_NOTIFICATION_EXTRA = "SHOW_ACTIVATE_NOTIFICATION"
+        private const val PREF_ARTWORK_PENDING = "data_layer_artwork_pending"
+        private const val PENDING_WORK_NAME = "DataLayerLoadPending"
 
         /**
          * Load artwork from the Data Layer
@@ -65,6 +82,34 @@ class DataLayerLoadWorker : Worker() {
                 }
             }.build())
         }
+
+        /**
+         * Records that the phone has new artwork, only loading it right away if the watch
+         * face is visible. Otherwise, it is loaded by [enqueueLoadIfPending] once needed.
+         */
+        fun onArtworkMarkerChanged(context: Context) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit {
+                putBoolean(PREF_ARTWORK_PENDING, true)
+            }
+            if (isWatchFaceVisible) {
+                enqueueLoadIfPending(context)
+            }
+        }
+
+        /**
+         * Load artwork from the Data Layer if the phone has new artwork that hasn't been
+         * loaded yet. Call this whenever the artwork is about to be shown.
+         */
+        fun enqueueLoadIfPending(context: Context) {
+            if (!PreferenceManager.getDefaultSharedPreferences(context)
+                            .getBoolean(PREF_ARTWORK_PENDING, false)) {
+                return
+            }
+            WorkManager.getInstance().beginUniqueWork(PENDING_WORK_NAME,
+                    ExistingWorkPolicy.KEEP,
+                    OneTimeWorkRequestBuilder<DataLayerLoadWorker>().build()
+            ).enqueue()
+        }
     }
 
     override fun doWork(): Result = runBlocking {
@@ -81,7 +126,7 @@ class DataLayerLoadWorker : Worker() {
         val dataClient = Wearable.getDataClient(applicationContext)
         try {
             val dataItemBuffer = Tasks.await(dataClient.getDataItems(
-                    Uri.parse("wear://*/artwork")))
+                    Uri.parse("wear://*$ARTWORK_PATH")))
             if (!dataItemBuffer.status.isSuccess) {
                 if (BuildConfig.DEBUG) {
                     Log.i(TAG, "Error getting artwork DataItem")
@@ -95,6 +140,23 @@ class DataLayerLoadWorker : Worker() {
                 DataMapItem.fromDataItem(it).dataMap
             }.firstOrNull { it.containsKey("artwork") && it.containsKey("image") }
             dataItemBuffer.release()
+            val markerBuffer = Tasks.await(dataClient.getDataItems(
+                    Uri.parse("wear://*$ARTWORK_MARKER_PATH")))
+            val marker = markerBuffer.firstOrNull()?.let { dataItem ->
+                // The host of the DataItem's Uri is the node that published it
+                Pair(dataItem.uri.host, DataMapItem.fromDataItem(dataItem)
+                        .dataMap.getLong(KEY_ARTWORK_ID))
+            }
+            markerBuffer.release()
+            if (marker != null && marker.second != dataMap?.getLong(KEY_ARTWORK_ID)) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Requesting artwork ${marker.second} from ${marker.first}")
+                }
+                // ArtworkChangedListenerService loads the artwork once it is uploaded
+                Tasks.await(Wearable.getMessageClient(applicationContext).sendMessage(
+                        marker.first, ARTWORK_REQUEST_PATH, null))
+                return Result.SUCCESS
+            }
             if (dataMap == null) {
                 if (BuildConfig.DEBUG) {
                     Log.w(TAG, "No artwork datamap found.")
@@ -113,11 +175,18 @@ class DataLayerLoadWorker : Worker() {
                 }
                 DataLayerArtProvider::class.select(applicationContext)
             }
+            // Phones that send the id of their artwork get each artwork kept separately
+            val artworkToken = if (dataMap.containsKey(KEY_ARTWORK_ID)) {
+                dataMap.getLong(KEY_ARTWORK_ID).toString()
+            } else {
+                null
+            }
             val result = Tasks.await<DataClient.GetFdForAssetResponse>(
                     dataClient.getFdForAsset(dataMap.getAsset("image")))
             try {
                 result.inputStream.use { input ->
-                    FileOutputStream(DataLayerArtProvider.getAssetFile(applicationContext)).use { out ->
+                    FileOutputStream(DataLayerArtProvider.getAssetFile(
+                            applicationContext, artworkToken)).use { out ->
                         input.copyTo(out)
                     }
                 }
@@ -127,9 +196,20 @@ class DataLayerLoadWorker : Worker() {
             } finally {
                 result.release()
             }
-            val artwork = dataMap.getDataMap("artwork").toArtwork()
-            val artworkUri = ProviderContract.Artwork.setArtwork(applicationContext,
-                    DataLayerArtProvider::class.java, artwork)
+            val artwork = dataMap.getDataMap("artwork").toArtwork().apply {
+                token = artworkToken
+            }
+            val artworkUri = if (artworkToken == null) {
+                ProviderContract.Artwork.setArtwork(applicationContext,
+                        DataLayerArtProvider::class.java, artwork)
+            } else {
+                ProviderContract.Artwork.addArtwork(applicationContext,
+                        DataLayerArtProvider::class.java, artwork)?.also { addedArtworkUri ->
+                    DataLayerArtProvider.trim(applicationContext)
+                    // Show the new artwork right away rather than at the next scheduled change
+                    showArtwork(addedArtworkUri, dataLayerProvider, artwork)
+                }
+            }
             if (artworkUri != null) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Successfully wrote artwork to $artworkUri")
@@ -139,6 +219,9 @@ class DataLayerLoadWorker : Worker() {
                         ArtworkComplicationProviderService::class)
                 ActivateMuzeiIntentService.clearNotifications(applicationContext)
             }
+            PreferenceManager.getDefaultSharedPreferences(applicationContext).edit {
+                putBoolean(PREF_ARTWORK_PENDING, false)
+            }
             return Result.SUCCESS
         } catch (e: ExecutionException) {
             Log.w(TAG, "Error getting artwork from Wear Data Layer", e)
@@ -149,6 +232,33 @@ class DataLayerLoadWorker : Worker() {
         }
     }
 
+    /**
+     * Makes the artwork at [artworkUri] the current artwork, the same way
+     * [com.google.android.apps.muzei.sync.ArtworkLoadWorker] loads new artwork. Asking for
+     * the next artwork instead could pick any of the artwork kept by [DataLayerArtProvider].
+     */
+    private suspend fun showArtwork(
+            artworkUri: Uri,
+            providerComponentName: ComponentName,
+            providerArtwork: com.google.android.apps.muzei.api.provider.Artwork
+    ) {
+        try {
+            ContentProviderClientCompat.getClient(applicationContext, artworkUri)?.use { client ->
+                // Keep the next load from picking it again as new artwork
+                client.call(METHOD_MARK_ARTWORK_LOADED, artworkUri.toString())
+            }
+        } catch (e: RemoteException) {
+            Log.w(TAG, "Unable to mark $artworkUri as loaded", e)
+        }
+        MuzeiDatabase.getInstance(applicationContext).artworkDao().insert(
+                Artwork(artworkUri).apply {
+                    this.providerComponentName = providerComponentName
+                    title = providerArtwork.title
+                    byline = providerArtwork.byline
+                    attribution = providerArtwork.attribution
+                })
+    }
+
     private fun enableComponents(vararg components: KClass<*>) {
         components
                 .map { ComponentName(applicationContext, it.java) }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.datalayer
+
+import android.content.Context
+import android.util.Log
+import com.google.android.apps.muzei.wearable.KEY_SCREEN_HEIGHT
+import com.google.android.apps.muzei.wearable.KEY_SCREEN_WIDTH
+import com.google.android.apps.muzei.wearable.WATCH_FACE_VISIBLE_CAPABILITY
+import com.google.android.apps.muzei.wearable.WATCH_INFO_PATH
+import com.google.android.gms.wearable.PutDataMapRequest
+import com.google.android.gms.wearable.Wearable
+
+private const val TAG = "WatchState"
+
+/**
+ * Publishes the screen size of this watch to the phone, so that it sends artwork sized
+ * for this watch. The Data Layer only syncs the DataItem when its content changes.
+ */
+fun publishWatchInfo(context: Context) {
+    val displayMetrics = context.resources.displayMetrics
+    val dataMapRequest = PutDataMapRequest.create(WATCH_INFO_PATH).apply {
+        dataMap.putInt(KEY_SCREEN_WIDTH, displayMetrics.widthPixels)
+        dataMap.putInt(KEY_SCREEN_HEIGHT, displayMetrics.heightPixels)
+    }
+    Wearable.getDataClient(context).putDataItem(dataMapRequest.asPutDataRequest())
+            .addOnFailureListener { e ->
+                Log.w(TAG, "Unable to publish watch info", e)
+            }
+}
+
+/**
+ * Whether the Muzei watch face is currently visible
+ */
+@Volatile
+var isWatchFaceVisible = false
+    private set
+
+/**
+ * Advertises whether the Muzei watch face is [visible], which the phone uses to decide
+ * whether new artwork needs to be delivered right away.
+ */
+fun setWatchFaceVisible(context: Context, visible: Boolean) {
+    isWatchFaceVisible = visible
+    val capabilityClient = Wearable.getCapabilityClient(context)
+    val task = if (visible) {
+        capabilityClient.addLocalCapability(WATCH_FACE_VISIBLE_CAPABILITY)
+    } else {
+        capabilityClient.removeLocalCapability(WATCH_FACE_VISIBLE_CAPABILITY)
+    }
+    task.addOnFailureListener { e ->
+        Log.w(TAG, "Unable to update watch face capability", e)
+    }
+}
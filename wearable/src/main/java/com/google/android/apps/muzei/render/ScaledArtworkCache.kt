@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.LruCache
+import com.google.android.apps.muzei.room.Artwork
+import com.google.android.apps.muzei.util.blur
+import kotlinx.coroutines.experimental.CommonPool
+import kotlinx.coroutines.experimental.Deferred
+import kotlinx.coroutines.experimental.async
+
+/**
+ * Returns this bitmap scaled so that it covers a [width] by [height] surface, keeping its
+ * aspect ratio.
+ */
+fun Bitmap.scaleToCover(width: Int, height: Int): Bitmap {
+    val scale = Math.max(width.toFloat() / this.width, height.toFloat() / this.height)
+    return Bitmap.createScaledBitmap(this,
+            Math.max(1, Math.round(this.width * scale)),
+            Math.max(1, Math.round(this.height * scale)), true)
+}
+
+/**
+ * A cache of the artwork scaled for the surfaces showing it on the watch (the watch face,
+ * [com.google.android.apps.muzei.util.PanView] and complications), so that the artwork is
+ * only decoded, scaled and blurred once for each surface size rather than each time one of
+ * them is shown.
+ *
+ * Artwork is decoded through [ArtworkBitmapCache] at the smallest sample size that still
+ * covers the surface. Returned bitmaps are shared and must not be recycled or modified.
+ */
+object ScaledArtworkCache {
+    private const val MAX_SIZE_BYTES = 6 * 1024 * 1024
+    // Fraction of the maximum heap size the cache may use
+    private const val MAX_HEAP_DIVISOR = 8L
+
+    /**
+     * Identifies the artwork scaled to cover a [width] by [height] surface and, if
+     * [blurRadius] is positive, blurred by it. Each blurred version is a separate entry so
+     * that entries never change size once cached.
+     */
+    private data class Key(
+            val artworkId: Long,
+            val width: Int,
+            val height: Int,
+            val blurRadius: Float = 0f
+    )
+
+    private val scaledArtwork = object : LruCache<Key, Bitmap>(Math.min(
+            MAX_SIZE_BYTES.toLong(),
+            Runtime.getRuntime().maxMemory() / MAX_HEAP_DIVISOR).toInt()) {
+        override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+    }
+    // Guarded by itself
+    private val inFlight = HashMap<Key, Deferred<Bitmap?>>()
+
+    /**
+     * Returns the [artwork] scaled to cover a [width] by [height] surface, or null if it
+     * can't be decoded.
+     */
+    suspend fun get(context: Context, artwork: Artwork, width: Int, height: Int): Bitmap? {
+        if (width <= 0 || height <= 0) {
+            return null
+        }
+        return getOrCreate(Key(artwork.id, width, height)) {
+            decodeToCover(context, artwork, width, height)
+        }
+    }
+
+    /**
+     * Returns the [artwork] scaled to cover a [width] by [height] surface and blurred by
+     * [radius], blurring it in the background if needed.
+     */
+    suspend fun getBlurred(
+            context: Context,
+            artwork: Artwork,
+            width: Int,
+            height: Int,
+            radius: Float
+    ): Bitmap? {
+        if (width <= 0 || height <= 0) {
+            return null
+        }
+        return getOrCreate(Key(artwork.id, width, height, radius)) {
+            get(context, artwork, width, height)?.blur(context, radius)
+        }
+    }
+
+    /**
+     * Returns the bitmap cached under [key], creating it in the background with [create]
+     * if needed. Concurrent requests for the same key share a single [create] call.
+     */
+    private suspend fun getOrCreate(key: Key, create: suspend () -> Bitmap?): Bitmap? {
+        val deferred = synchronized(inFlight) {
+            scaledArtwork.get(key)?.let { cached ->
+                return cached
+            }
+            inFlight.getOrPut(key) {
+                async(CommonPool) {
+                    var bitmap: Bitmap? = null
+                    try {
+                        bitmap = create()
+                        bitmap
+                    } finally {
+                        // Even a failed create has to leave inFlight, so that the
+                        // next request tries again
+                        synchronized(inFlight) {
+                            bitmap?.let { scaledArtwork.put(key, it) }
+                            inFlight.remove(key)
+                        }
+                    }
+                }
+            }
+        }
+        return deferred.await()
+    }
+
+    private suspend fun decodeToCover(
+            context: Context,
+            artwork: Artwork,
+            width: Int,
+            height: Int
+    ): Bitmap? {
+        val (artworkWidth, artworkHeight) = ArtworkBitmapCache.getSize(context, artwork)
+        if (artworkWidth == 0 || artworkHeight == 0) {
+            return null
+        }
+        // Decode just large enough that both dimensions cover the surface
+        val scale = Math.max(width.toFloat() / artworkWidth, height.toFloat() / artworkHeight)
+        val image = ArtworkBitmapCache.get(context, artwork,
+                Math.max(1, Math.round(artworkWidth * scale)),
+                Math.max(1, Math.round(artworkHeight * scale))) ?: return null
+        return image.scaleToCover(width, height)
+    }
+
+    /**
+     * Drops all cached artwork, e.g. when the system is low on memory.
+     */
+    fun evictAll() {
+        scaledArtwork.evictAll()
+    }
+}
@@ -43,7 +43,6 @@ class PanView @JvmOverloads constructor(context: Context, attrs: AttributeSet? =
         private const val TAG = "PanView"
     }
 
-    private var image: Bitmap? = null
     private var scaledImage: Bitmap? = null
     private var blurredImage: Bitmap? = null
     private var blurAmount = 0f
@@ -141,39 +140,29 @@ class PanView @JvmOverloads constructor(context: Context, attrs: AttributeSet? =
     }
 
     /**
-     * Sets an image to be displayed. Preferably this image should be larger than this view's size
-     * to allow scrolling. Note that the image will be centered on first display
-     * @param image Image to display
+     * Sets an image to be displayed, along with its blurred version. The images should be
+     * scaled to cover this view (for instance with
+     * [com.google.android.apps.muzei.render.ScaledArtworkCache]) and are drawn as is, which
+     * allows scrolling when they are larger than this view. Note that the image will be
+     * centered on first display
+     * @param scaledImage Image to display
+     * @param blurredImage Blurred version of the image, shown based on the blur amount
      */
-    fun setImage(image: Bitmap?) {
-        this.image = image
-        updateScaledImage()
+    fun setImage(scaledImage: Bitmap?, blurredImage: Bitmap?) {
+        this.scaledImage = scaledImage
+        this.blurredImage = blurredImage
+        centerImage()
     }
 
     override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
         super.onSizeChanged(w, h, oldw, oldh)
         currentWidth = Math.max(1, w)
         currentHeight = Math.max(1, h)
-        updateScaledImage()
+        centerImage()
     }
 
-    private fun updateScaledImage() {
-        val image = image?.takeUnless { it.width == 0 || it.height == 0 } ?: return
-
-        val width = image.width
-        val height = image.height
-        scaledImage = if (width > height) {
-            val scalingFactor = currentHeight * 1f / height
-            val scaledWidth = Math.max(1, (scalingFactor * width).toInt())
-            Bitmap.createScaledBitmap(image, scaledWidth, currentHeight, true)
-        } else {
-            val scalingFactor = currentWidth * 1f / width
-            val scaledHeight = Math.max(1, (scalingFactor * height).toInt())
-            Bitmap.createScaledBitmap(image, currentWidth, scaledHeight, true)
-        }
-        blurredImage = scaledImage.blur(context)
+    private fun centerImage() {
         scaledImage?.let {
-            // Center the image
             offsetX = ((currentWidth - it.width) / 2).toFloat()
             offsetY = ((currentHeight - it.height) / 2).toFloat()
         }